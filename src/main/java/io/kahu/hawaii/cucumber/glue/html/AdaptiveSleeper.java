@@ -0,0 +1,54 @@
+/**
+ * Copyright 2015 Q24
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.kahu.hawaii.cucumber.glue.html;
+
+import org.openqa.selenium.support.ui.Duration;
+import org.openqa.selenium.support.ui.Sleeper;
+
+/**
+ * Sleeper for a single wait that ignores the fixed polling interval of the
+ * wait and backs off exponentially from an initial interval towards a cap
+ * instead.
+ */
+public class AdaptiveSleeper implements Sleeper {
+
+    private final long cap;
+    private final double backoff;
+    private long interval;
+    private int sleeps;
+
+    public AdaptiveSleeper(long initialInterval, long cap, double backoff) {
+        // an interval of 0 would never grow, and the wait would spin
+        this.interval = Math.max(1, initialInterval);
+        this.cap = Math.max(interval, cap);
+        this.backoff = Math.max(1.0, backoff);
+    }
+
+    @Override
+    public void sleep(Duration ignored) throws InterruptedException {
+        Thread.sleep(interval);
+        sleeps++;
+        interval = Math.min(cap, (long) Math.ceil(interval * backoff));
+    }
+
+    /**
+     * @return the number of times the condition was evaluated so far, which
+     *         is one more than the number of sleeps in between
+     */
+    public int getPolls() {
+        return sleeps + 1;
+    }
+}
@@ -0,0 +1,206 @@
+/**
+ * Copyright 2015 Q24
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.kahu.hawaii.cucumber.glue.html;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+
+import org.openqa.selenium.JavascriptExecutor;
+import org.openqa.selenium.WebDriver;
+import org.openqa.selenium.WebDriverException;
+import org.openqa.selenium.htmlunit.HtmlUnitDriver;
+
+/**
+ * Samples the memory of browsers at scenario boundaries: the JavaScript heap
+ * of the page (performance.memory, where the browser has it) and the
+ * resident memory of the driver and browser processes the JVM started (on
+ * Linux). The samples of a browser that outlives its scenario, such as the
+ * shared browser of window sessions or a pooled HtmlUnit driver, show
+ * whether it leaks; once it crosses test.memory.max.heap or
+ * test.memory.max.rss (in MB), or is older than test.browser.max.age (in
+ * ms), it should be recycled. A summary of the trend is printed when the JVM
+ * exits.
+ */
+public class BrowserMemory {
+
+    private static final String HEAP_SCRIPT = "return window.performance && window.performance.memory ? window.performance.memory.usedJSHeapSize : null;";
+    private static final long MB = 1024 * 1024;
+
+    private final long maxHeap;
+    private final long maxRss;
+    private final long maxAge;
+    private final Map<Object, Trend> trends = new WeakHashMap<>();
+    private final List<Trend> finished = new ArrayList<>();
+
+    /**
+     * @param maxHeap
+     *            the JavaScript heap in bytes to recycle at, 0 for no limit
+     * @param maxRss
+     *            the resident memory in bytes to recycle at, 0 for no limit
+     * @param maxAge
+     *            the age in milliseconds to recycle at, 0 for no limit
+     */
+    public BrowserMemory(long maxHeap, long maxRss, long maxAge) {
+        this.maxHeap = maxHeap;
+        this.maxRss = maxRss;
+        this.maxAge = maxAge;
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            String report = toString();
+            if (!report.isEmpty()) {
+                System.err.println(report);
+            }
+        }, "browser-memory"));
+    }
+
+    /**
+     * Samples the memory of a browser.
+     *
+     * @param browser
+     *            the browser the trend is kept for, e.g. the shared browser
+     *            of a window session
+     * @param driver
+     *            the driver to run the heap script with
+     * @return the reason the browser should be recycled, or null
+     */
+    public String sample(Object browser, WebDriver driver) {
+        Long heap = null;
+        if (driver instanceof JavascriptExecutor && !(driver instanceof HtmlUnitDriver && !((HtmlUnitDriver) driver).isJavascriptEnabled())) {
+            try {
+                Object value = ((JavascriptExecutor) driver).executeScript(HEAP_SCRIPT);
+                heap = value instanceof Number ? ((Number) value).longValue() : null;
+            } catch (WebDriverException | UnsupportedOperationException e) {
+                // no page, or no scripts
+            }
+        }
+        // an HtmlUnit browser lives in this JVM
+        Long rss = driver instanceof HtmlUnitDriver ? null : childProcessesRss();
+        Trend trend;
+        synchronized (this) {
+            trend = trends.get(browser);
+            if (trend == null) {
+                trend = new Trend(browser.getClass().getSimpleName());
+                trends.put(browser, trend);
+            }
+            trend.add(heap, rss);
+        }
+        GlueMetrics.increment("memory.samples");
+        if (maxHeap > 0 && heap != null && heap >= maxHeap) {
+            return "javascript heap " + heap / MB + "MB";
+        }
+        if (maxRss > 0 && rss != null && rss >= maxRss) {
+            return "resident memory " + rss / MB + "MB";
+        }
+        long age = System.currentTimeMillis() - trend.born;
+        if (maxAge > 0 && age >= maxAge) {
+            return "age " + age + "ms";
+        }
+        return null;
+    }
+
+    /**
+     * Ends the trend of a browser that is recycled.
+     */
+    public synchronized void recycled(Object browser, String reason) {
+        Trend trend = trends.remove(browser);
+        if (trend != null) {
+            trend.recycleReason = reason;
+            finished.add(trend);
+        }
+        GlueMetrics.increment("memory.recycled");
+    }
+
+    /**
+     * @return the summed resident memory of the processes this JVM started
+     *         and their children, or null if there are none, e.g. for a
+     *         remote browser
+     */
+    static Long childProcessesRss() {
+        Set<String> processes = ProcessTree.descendants();
+        if (processes.isEmpty()) {
+            return null;
+        }
+        long rss = 0;
+        for (String pid : processes) {
+            rss += ProcessTree.rss(pid);
+        }
+        return rss;
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder builder = new StringBuilder();
+        List<Trend> all = new ArrayList<>(finished);
+        all.addAll(trends.values());
+        for (Trend trend : all) {
+            if (trend.samples > 1) {
+                builder.append(builder.length() == 0 ? "" : "\n").append("browser memory: ").append(trend);
+            }
+        }
+        return builder.toString();
+    }
+
+    /**
+     * The samples of one browser.
+     */
+    private static class Trend {
+
+        private final String browser;
+        private final long born = System.currentTimeMillis();
+        private int samples;
+        private Long firstHeap;
+        private Long lastHeap;
+        private Long firstRss;
+        private Long lastRss;
+        private String recycleReason;
+
+        Trend(String browser) {
+            this.browser = browser;
+        }
+
+        void add(Long heap, Long rss) {
+            samples++;
+            if (heap != null) {
+                firstHeap = firstHeap == null ? heap : firstHeap;
+                lastHeap = heap;
+            }
+            if (rss != null) {
+                firstRss = firstRss == null ? rss : firstRss;
+                lastRss = rss;
+            }
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder builder = new StringBuilder(browser).append(", ").append(samples).append(" scenarios in ")
+                    .append((System.currentTimeMillis() - born) / 1000).append("s");
+            if (firstHeap != null) {
+                builder.append(", javascript heap ").append(firstHeap / MB).append("MB to ").append(lastHeap / MB).append("MB (")
+                        .append((lastHeap - firstHeap) / 1024 / (samples - 1)).append("KB per scenario)");
+            }
+            if (firstRss != null) {
+                builder.append(", resident ").append(firstRss / MB).append("MB to ").append(lastRss / MB).append("MB (")
+                        .append((lastRss - firstRss) / 1024 / (samples - 1)).append("KB per scenario)");
+            }
+            if (recycleReason != null) {
+                builder.append(", recycled at ").append(recycleReason);
+            }
+            return builder.toString();
+        }
+    }
+}
@@ -0,0 +1,127 @@
+/**
+ * Copyright 2015 Q24
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.kahu.hawaii.cucumber.glue.html;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+
+/**
+ * Fills the HTTP and script caches of a new browser by visiting warm-up
+ * pages before its first scenario, and keeps track of the payoff: the time
+ * spent priming, and how much faster the first visit of a scenario to a
+ * warm-up page loads than the page did cold, during priming.
+ */
+public class CachePrimer {
+
+    private final List<String> paths;
+    private final Set<Object> primedBrowsers = Collections.newSetFromMap(new WeakHashMap<>());
+    private final Map<String, Long> coldLoads = new HashMap<>();
+    private long primingMillis;
+    private int primedCount;
+    private long firstVisits;
+    private long firstVisitMillis;
+    private long coldMillis;
+    private boolean skipped;
+
+    /**
+     * @param paths
+     *            the warm-up pages, relative to the url of the application
+     */
+    public CachePrimer(List<String> paths) {
+        this.paths = paths;
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            if (primedCount > 0) {
+                System.err.println(toString());
+            }
+        }, "cache-primer"));
+    }
+
+    public List<String> getPaths() {
+        return paths;
+    }
+
+    /**
+     * Marks a browser as primed.
+     *
+     * @return true if the browser still has to be primed
+     */
+    public synchronized boolean startPriming(Object browser) {
+        return primedBrowsers.add(browser);
+    }
+
+    /**
+     * Notes a browser that is not primed, because it ends with its scenario
+     * and priming it would only add the cold loads to that scenario. Warns
+     * the first time.
+     */
+    public synchronized void skipPriming() {
+        if (!skipped) {
+            System.err.println("Not priming the cache: a browser per scenario ends before it can use it; "
+                    + "use window sessions (test.browser.windows) or the HtmlUnit pool (@web-lite)");
+            skipped = true;
+        }
+        GlueMetrics.increment("warmup.skipped");
+    }
+
+    /**
+     * Records the time spent priming one browser, and the cold load times of
+     * the warm-up pages.
+     */
+    public synchronized void recordPriming(long millis, Map<String, Long> loads) {
+        primedCount++;
+        primingMillis += millis;
+        coldLoads.putAll(loads);
+        GlueMetrics.increment("warmup.browsers");
+        GlueMetrics.add("warmup.millis", millis);
+    }
+
+    /**
+     * Records the load time of the first visit of a scenario to a page in a
+     * primed browser.
+     */
+    public synchronized void recordFirstVisit(String path, long load) {
+        Long cold = coldLoads.get(path);
+        if (cold == null) {
+            return;
+        }
+        firstVisits++;
+        firstVisitMillis += load;
+        coldMillis += cold;
+        GlueMetrics.add("warmup.saved.millis", cold - load);
+    }
+
+    /**
+     * @return the time saved on first visits to warm-up pages, minus the time
+     *         spent priming; negative when priming does not pay off
+     */
+    public synchronized long getPayoffMillis() {
+        return coldMillis - firstVisitMillis - primingMillis;
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder builder = new StringBuilder("cache priming: ").append(primedCount).append(" browser(s) primed in ").append(primingMillis).append("ms");
+        if (firstVisits > 0) {
+            builder.append(", ").append(firstVisits).append(" first visit(s) to warm-up pages loaded in ").append(firstVisitMillis / firstVisits)
+                    .append("ms on average against ").append(coldMillis / firstVisits).append("ms cold, payoff ").append(getPayoffMillis()).append("ms");
+        }
+        return builder.toString();
+    }
+}
@@ -0,0 +1,184 @@
+/**
+ * Copyright 2015 Q24
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.kahu.hawaii.cucumber.glue.html;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Stops a run from waiting out every timeout when the environment is down.
+ * The breaker counts consecutive failures to start a browser, navigate or
+ * load a page, and failed preflight probes: requests to the environment
+ * before a scenario starts, which also see server errors a browser does not
+ * report. At the threshold it opens, and scenarios and waits fail at
+ * once with an {@link EnvironmentUnavailableException}. While it is open,
+ * the application (and the selenium hub) are probed in the background; when
+ * they all answer without a server error, the breaker closes again.
+ */
+public class CircuitBreaker {
+
+    private final int threshold;
+    private final long probeInterval;
+    private final int probeTimeout;
+    private int failures;
+    private String lastFailure;
+    private Date openedAt;
+    private List<String> probeUrls = new ArrayList<>();
+    private ScheduledExecutorService prober;
+    private ScheduledFuture<?> probe;
+
+    /**
+     * @param threshold
+     *            the number of consecutive failures that opens the breaker,
+     *            0 to never open it
+     * @param probeInterval
+     *            the milliseconds between probes while the breaker is open
+     */
+    public CircuitBreaker(int threshold, long probeInterval) {
+        this.threshold = threshold;
+        this.probeInterval = probeInterval;
+        this.probeTimeout = (int) Math.min(probeInterval, 10000);
+    }
+
+    /**
+     * @throws EnvironmentUnavailableException
+     *             If the breaker is open
+     */
+    public synchronized void check() {
+        if (openedAt != null) {
+            GlueMetrics.increment("circuit.short.circuited");
+            throw new EnvironmentUnavailableException("environment unavailable since " + openedAt + " after " + failures
+                    + " consecutive failures, last: " + lastFailure);
+        }
+    }
+
+    public synchronized boolean isOpen() {
+        return openedAt != null;
+    }
+
+    /**
+     * Probes the environment once, counting a failure if it does not answer
+     * or answers with a server error.
+     *
+     * @return true if the environment answered
+     */
+    public boolean preflight(List<String> urls) {
+        for (String url : urls) {
+            if (!isUp(url)) {
+                recordFailure("probe of " + url, null, urls);
+                return false;
+            }
+        }
+        recordSuccess();
+        return true;
+    }
+
+    public synchronized void recordSuccess() {
+        failures = 0;
+    }
+
+    /**
+     * Counts a failure that points at the environment.
+     *
+     * @param what
+     *            what failed, e.g. "navigation to http://..."
+     * @param urls
+     *            the urls to probe to find out if the environment is back
+     */
+    public synchronized void recordFailure(String what, Throwable cause, List<String> urls) {
+        failures++;
+        lastFailure = cause == null ? what + " failed" : what + ": " + cause.getClass().getSimpleName() + " " + firstLine(cause.getMessage());
+        if (threshold > 0 && failures >= threshold && openedAt == null) {
+            open(urls);
+        }
+    }
+
+    private void open(List<String> urls) {
+        openedAt = new Date();
+        probeUrls = new ArrayList<>(urls);
+        GlueMetrics.increment("circuit.opened");
+        System.err.println("Environment unavailable after " + failures + " consecutive failures, last: " + lastFailure + "; probing " + probeUrls);
+        if (prober == null) {
+            prober = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "circuit-breaker-probe");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        probe = prober.scheduleWithFixedDelay(this::probe, probeInterval, probeInterval, TimeUnit.MILLISECONDS);
+    }
+
+    private void probe() {
+        List<String> urls;
+        synchronized (this) {
+            urls = probeUrls;
+        }
+        for (String url : urls) {
+            if (!isUp(url)) {
+                return;
+            }
+        }
+        synchronized (this) {
+            System.err.println("Environment available again after " + (System.currentTimeMillis() - openedAt.getTime()) + "ms");
+            GlueMetrics.increment("circuit.closed");
+            openedAt = null;
+            failures = 0;
+            probe.cancel(false);
+        }
+    }
+
+    private boolean isUp(String url) {
+        try {
+            HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+            connection.setConnectTimeout(probeTimeout);
+            connection.setReadTimeout(probeTimeout);
+            connection.setInstanceFollowRedirects(false);
+            int status = connection.getResponseCode();
+            connection.disconnect();
+            return status < 500;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private static String firstLine(String message) {
+        if (message == null) {
+            return "";
+        }
+        int newline = message.indexOf('\n');
+        return newline < 0 ? message : message.substring(0, newline);
+    }
+
+    /**
+     * Thrown instead of trying the environment while the breaker is open.
+     */
+    public static class EnvironmentUnavailableException extends RuntimeException {
+
+        private static final long serialVersionUID = 1L;
+
+        public EnvironmentUnavailableException(String message) {
+            super(message);
+        }
+    }
+}
@@ -0,0 +1,61 @@
+/**
+ * Copyright 2015 Q24
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.kahu.hawaii.cucumber.glue.html;
+
+import java.lang.reflect.Method;
+import java.net.URL;
+
+import org.openqa.selenium.WebDriver;
+import org.openqa.selenium.remote.CommandExecutor;
+import org.openqa.selenium.remote.HttpCommandExecutor;
+import org.openqa.selenium.remote.RemoteWebDriver;
+
+/**
+ * Access to the command executor of a driver, to decorate it.
+ */
+final class CommandExecutors {
+
+    private CommandExecutors() {
+    }
+
+    /**
+     * Replaces the command executor of a running driver.
+     */
+    static void replace(RemoteWebDriver driver, CommandExecutor executor) {
+        try {
+            // the executor can only be replaced by subclasses
+            Method setter = RemoteWebDriver.class.getDeclaredMethod("setCommandExecutor", CommandExecutor.class);
+            setter.setAccessible(true);
+            setter.invoke(driver, executor);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Could not replace the command executor of the driver", e);
+        }
+    }
+
+    /**
+     * @return the address the commands of a driver are sent to, such as that
+     *         of its driver service, or null if they are not sent over http
+     */
+    static URL addressOf(WebDriver driver) {
+        if (driver instanceof WindowSessionDriver) {
+            driver = ((WindowSessionDriver) driver).getBrowser();
+        }
+        if (driver instanceof RemoteWebDriver && ((RemoteWebDriver) driver).getCommandExecutor() instanceof HttpCommandExecutor) {
+            return ((HttpCommandExecutor) ((RemoteWebDriver) driver).getCommandExecutor()).getAddressOfRemoteServer();
+        }
+        return null;
+    }
+}
@@ -0,0 +1,223 @@
+/**
+ * Copyright 2015 Q24
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.kahu.hawaii.cucumber.glue.html;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.openqa.selenium.WebDriver;
+import org.openqa.selenium.WebDriverException;
+import org.openqa.selenium.remote.Command;
+import org.openqa.selenium.remote.CommandExecutor;
+import org.openqa.selenium.remote.DriverCommand;
+import org.openqa.selenium.remote.RemoteWebDriver;
+import org.openqa.selenium.remote.Response;
+
+/**
+ * Command executor that keeps a hung browser from blocking the run. Every
+ * command gets at most test.command.timeout, and all commands of a scenario
+ * together at most its budget, test.scenario.budget (in ms). A command that
+ * runs over is abandoned: the session is aborted by killing the processes
+ * of its browser and quitting it in the background, and the command fails
+ * with a description of what hung where. Later commands of the session fail
+ * at once, except for quit, so the next scenario starts with a fresh
+ * browser.
+ */
+public class CommandWatchdog implements CommandExecutor {
+
+    private static final int MAX_PARAMETERS_LENGTH = 200;
+    private static final int STACK_FRAMES = 8;
+
+    private final CommandExecutor delegate;
+    private final RemoteWebDriver driver;
+    private final long commandTimeout;
+    private final long deadline;
+    private final Collection<String> processes;
+    private final ExecutorService worker;
+    private volatile Thread workerThread;
+    private volatile String abortReason;
+
+    private CommandWatchdog(RemoteWebDriver driver, long commandTimeout, long deadline, Collection<String> processes) {
+        this.delegate = driver.getCommandExecutor();
+        this.driver = driver;
+        this.commandTimeout = commandTimeout;
+        this.deadline = deadline;
+        this.processes = processes;
+        this.worker = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "command-watchdog");
+            // a command that never returns must not keep the JVM alive
+            thread.setDaemon(true);
+            workerThread = thread;
+            return thread;
+        });
+    }
+
+    /**
+     * Watches the commands of a driver from now on.
+     *
+     * @param commandTimeout
+     *            the milliseconds a command may take, 0 for no limit
+     * @param deadline
+     *            the time by which the scenario must be done, 0 for none
+     * @param processes
+     *            the ids of the processes of the browser, killed when the
+     *            session is aborted
+     * @return the watchdog, or null if the driver can not be watched; only
+     *         drivers that talk to their browser through a command executor
+     *         can be
+     */
+    public static CommandWatchdog install(WebDriver driver, long commandTimeout, long deadline, Collection<String> processes) {
+        if (!(driver instanceof RemoteWebDriver) || commandTimeout <= 0 && deadline <= 0) {
+            return null;
+        }
+        RemoteWebDriver remoteDriver = (RemoteWebDriver) driver;
+        CommandWatchdog watchdog = new CommandWatchdog(remoteDriver, commandTimeout, deadline, processes);
+        CommandExecutors.replace(remoteDriver, watchdog);
+        return watchdog;
+    }
+
+    /**
+     * @return why the session was aborted, or null if it was not
+     */
+    public String getAbortReason() {
+        return abortReason;
+    }
+
+    @Override
+    public Response execute(Command command) throws IOException {
+        if (abortReason != null) {
+            if (DriverCommand.QUIT.equals(command.getName())) {
+                // the browser is gone already
+                Response response = new Response(command.getSessionId());
+                response.setStatus(0);
+                return response;
+            }
+            throw new WebDriverException("Session aborted by the watchdog: " + abortReason);
+        }
+        if (DriverCommand.QUIT.equals(command.getName())) {
+            try {
+                return watch(command);
+            } finally {
+                // a browser per scenario would leave an idle worker behind each
+                worker.shutdown();
+            }
+        }
+        return watch(command);
+    }
+
+    private Response watch(Command command) throws IOException {
+        long start = System.currentTimeMillis();
+        long timeout = commandTimeout > 0 ? commandTimeout : Long.MAX_VALUE;
+        boolean budget = deadline > 0 && deadline - start < timeout;
+        if (budget) {
+            timeout = Math.max(deadline - start, 0);
+        }
+        if (timeout == Long.MAX_VALUE) {
+            return delegate.execute(command);
+        }
+        if (timeout == 0) {
+            String reason = describe(command, "not sent, the scenario ran " + (start - deadline) + "ms over its budget", false);
+            abort(reason);
+            throw new WebDriverException("Session aborted by the watchdog: " + reason);
+        }
+        Future<Response> response = worker.submit(() -> delegate.execute(command));
+        try {
+            return response.get(timeout, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            String reason = describe(command, "hung for " + (System.currentTimeMillis() - start) + "ms, over "
+                    + (budget ? "the scenario budget" : "the command timeout of " + commandTimeout + "ms"), true);
+            abort(reason);
+            throw new WebDriverException("Session aborted by the watchdog: " + reason);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            if (e.getCause() instanceof Error) {
+                throw (Error) e.getCause();
+            }
+            throw new WebDriverException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            response.cancel(true);
+            throw new WebDriverException("Interrupted while waiting for " + command.getName(), e);
+        }
+    }
+
+    private String describe(Command command, String what, boolean running) {
+        String parameters = String.valueOf(command.getParameters());
+        if (parameters.length() > MAX_PARAMETERS_LENGTH) {
+            parameters = parameters.substring(0, MAX_PARAMETERS_LENGTH) + "...";
+        }
+        StringBuilder reason = new StringBuilder(command.getName()).append(" ").append(parameters).append(" ").append(what).append(", session ")
+                .append(command.getSessionId());
+        String location = ScenarioLocationFormatter.currentLocation();
+        if (location != null) {
+            reason.append(", scenario ").append(location);
+        }
+        Thread thread = workerThread;
+        if (running && thread != null) {
+            reason.append(", waiting in");
+            int frames = 0;
+            for (StackTraceElement frame : thread.getStackTrace()) {
+                // the socket reads of the JDK say little about what hung
+                if (frames < STACK_FRAMES && !frame.getClassName().matches("(java|javax|sun|jdk)\\..*")) {
+                    reason.append("\n\tat ").append(frame);
+                    frames++;
+                }
+            }
+        }
+        return reason.toString();
+    }
+
+    /**
+     * Kills the processes of the browser, and quits the session in the
+     * background, for a remote browser that has no processes here.
+     */
+    private void abort(String reason) {
+        abortReason = reason;
+        GlueMetrics.increment("watchdog.aborted");
+        System.err.println("Aborting session: " + reason);
+        ProcessTree.kill(processes);
+        worker.shutdownNow();
+        if (driver instanceof WindowSessionDriver) {
+            // the next session opens in a new browser
+            ((WindowSessionDriver) driver).retireBrowser();
+        }
+        Thread quit = new Thread(() -> {
+            try {
+                if (driver instanceof WindowSessionDriver) {
+                    ((WindowSessionDriver) driver).getBrowser().quit();
+                } else {
+                    delegate.execute(new Command(driver.getSessionId(), DriverCommand.QUIT, Collections.<String, Object> emptyMap()));
+                }
+            } catch (IOException | RuntimeException e) {
+                // the browser is dead
+            }
+        }, "command-watchdog-quit");
+        quit.setDaemon(true);
+        quit.start();
+    }
+}
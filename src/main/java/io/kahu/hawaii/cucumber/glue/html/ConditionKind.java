@@ -0,0 +1,57 @@
+/**
+ * Copyright 2015 Q24
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.kahu.hawaii.cucumber.glue.html;
+
+/**
+ * The kind of condition a wait is polling for. Waits of the same kind tend to
+ * take a comparable amount of time to become true, so statistics are kept per
+ * kind.
+ */
+public enum ConditionKind {
+    URL, TITLE, VISIBILITY, TEXT, OTHER;
+
+    private static final String NEGATION_PREFIX = "condition to not be valid: ";
+
+    /**
+     * Classifies a condition by its description. The conditions in
+     * {@link org.openqa.selenium.support.ui.ExpectedConditions} and the ones
+     * in {@link HtmlSteps} describe themselves in their toString().
+     *
+     * @param condition
+     *            the condition, may be null
+     * @return the kind of the condition, {@link #OTHER} if unknown
+     */
+    public static ConditionKind of(Object condition) {
+        if (condition == null) {
+            return OTHER;
+        }
+        String description = String.valueOf(condition).toLowerCase();
+        while (description.startsWith(NEGATION_PREFIX)) {
+            description = description.substring(NEGATION_PREFIX.length());
+        }
+        if (description.startsWith("url")) {
+            return URL;
+        } else if (description.startsWith("title")) {
+            return TITLE;
+        } else if (description.startsWith("text")) {
+            return TEXT;
+        } else if (description.startsWith("visibility") || description.startsWith("element to no longer be visible")
+                || description.startsWith("element to be clickable")) {
+            return VISIBILITY;
+        }
+        return OTHER;
+    }
+}
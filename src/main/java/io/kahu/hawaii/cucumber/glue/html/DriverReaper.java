@@ -0,0 +1,164 @@
+/**
+ * Copyright 2015 Q24
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.kahu.hawaii.cucumber.glue.html;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.openqa.selenium.WebDriver;
+
+/**
+ * Keeps track of every driver the glue starts, so none is left running: a
+ * driver that is not quit normally is reaped (quit) when its scenario fails
+ * to start or stop, when it has been idle for longer than
+ * test.reaper.idle.timeout milliseconds (default ten minutes), and when the
+ * JVM exits. Quitting a local driver stops its driver process
+ * (chromedriver, phantomjs, ...) and browser; quitting a remote driver ends
+ * its session on the grid.
+ * <p>
+ * The number of reaped drivers is counted in the {@link GlueMetrics} as
+ * reaper.scenario, reaper.idle and reaper.shutdown.
+ */
+public final class DriverReaper {
+
+    private static final long IDLE_TIMEOUT = Long.getLong("test.reaper.idle.timeout", 600000);
+    private static final long QUIT_TIMEOUT = 30000;
+    private static final Map<WebDriver, Long> LAST_ACTIVITY = new IdentityHashMap<>();
+    private static ScheduledExecutorService watchdog;
+
+    private DriverReaper() {
+    }
+
+    /**
+     * Starts tracking a driver.
+     */
+    public static synchronized void track(WebDriver driver) {
+        if (watchdog == null) {
+            start();
+        }
+        LAST_ACTIVITY.put(driver, System.currentTimeMillis());
+    }
+
+    /**
+     * Marks a driver as active, so the watchdog does not take it for
+     * abandoned.
+     */
+    public static synchronized void touch(WebDriver driver) {
+        if (LAST_ACTIVITY.containsKey(driver)) {
+            LAST_ACTIVITY.put(driver, System.currentTimeMillis());
+        }
+    }
+
+    /**
+     * Quits a driver normally and stops tracking it. If quitting fails, the
+     * driver is reaped.
+     */
+    public static void quit(WebDriver driver) {
+        try {
+            driver.quit();
+            release(driver);
+        } catch (RuntimeException e) {
+            reap(driver, "scenario");
+            throw e;
+        }
+    }
+
+    /**
+     * Reaps a driver the glue gave up on, e.g. because its scenario failed
+     * to start.
+     */
+    public static void reap(WebDriver driver) {
+        reap(driver, "scenario");
+    }
+
+    /**
+     * @return the number of drivers that are started but not quit
+     */
+    public static synchronized int getTracked() {
+        return LAST_ACTIVITY.size();
+    }
+
+    private static synchronized boolean release(WebDriver driver) {
+        return LAST_ACTIVITY.remove(driver) != null;
+    }
+
+    private static void reap(WebDriver driver, String reason) {
+        if (!release(driver)) {
+            return;
+        }
+        GlueMetrics.increment("reaper." + reason);
+        // a hanging browser must not hang the reaper
+        Thread quitter = new Thread(() -> {
+            try {
+                driver.quit();
+            } catch (RuntimeException e) {
+                System.err.println("Could not quit " + driver.getClass().getSimpleName() + ": " + e.getMessage());
+            }
+        }, "driver-reaper-quit");
+        quitter.setDaemon(true);
+        quitter.start();
+        try {
+            quitter.join(QUIT_TIMEOUT);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void start() {
+        watchdog = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "driver-reaper");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long period = Math.max(1000, Math.min(IDLE_TIMEOUT / 4, 60000));
+        watchdog.scheduleWithFixedDelay(DriverReaper::reapIdle, period, period, TimeUnit.MILLISECONDS);
+        Runtime.getRuntime().addShutdownHook(new Thread(DriverReaper::reapAll, "driver-reaper-shutdown"));
+    }
+
+    private static void reapIdle() {
+        long now = System.currentTimeMillis();
+        List<WebDriver> idle = new ArrayList<>();
+        synchronized (DriverReaper.class) {
+            for (Map.Entry<WebDriver, Long> entry : LAST_ACTIVITY.entrySet()) {
+                if (now - entry.getValue() > IDLE_TIMEOUT) {
+                    idle.add(entry.getKey());
+                }
+            }
+        }
+        for (WebDriver driver : idle) {
+            System.err.println("Reaping " + driver.getClass().getSimpleName() + ", idle for more than " + IDLE_TIMEOUT + "ms");
+            reap(driver, "idle");
+        }
+    }
+
+    private static void reapAll() {
+        List<WebDriver> drivers;
+        synchronized (DriverReaper.class) {
+            drivers = new ArrayList<>(LAST_ACTIVITY.keySet());
+        }
+        for (WebDriver driver : drivers) {
+            reap(driver, "shutdown");
+        }
+        if (!drivers.isEmpty()) {
+            System.err.println("Reaped " + drivers.size() + " driver(s) left running at shutdown");
+        }
+    }
+}
@@ -0,0 +1,220 @@
+/**
+ * Copyright 2015 Q24
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.kahu.hawaii.cucumber.glue.html;
+
+import static org.junit.Assert.fail;
+import static org.openqa.selenium.support.ui.ExpectedConditions.invisibilityOfElementLocated;
+import static org.openqa.selenium.support.ui.ExpectedConditions.not;
+import static org.openqa.selenium.support.ui.ExpectedConditions.textToBePresentInElementLocated;
+import static org.openqa.selenium.support.ui.ExpectedConditions.visibilityOfElementLocated;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.openqa.selenium.By;
+import org.openqa.selenium.NoSuchElementException;
+import org.openqa.selenium.TimeoutException;
+import org.openqa.selenium.WebElement;
+
+/**
+ * The expectations of the step grammar
+ * <code>page element [with &lt;locator type&gt;] "&lt;value&gt;" should &lt;expectation&gt;</code>
+ * in one table, looked up by the words of the expectation, with
+ * <code>"..."</code> for its quoted argument: e.g. <code>contain text "..."</code>
+ * for <code>should contain text "Welcome"</code>. One step definition and a
+ * table lookup replace a step definition per locator type and expectation,
+ * which Cucumber had to try every step against. The step definition lists
+ * the expectations in {@link #PHRASES}, so that Cucumber still reports a
+ * misspelled expectation as an undefined step, also in a dry run.
+ */
+public final class ElementExpectations {
+
+    private static final String QUOTED = "\"[^\"]*\"";
+
+    /**
+     * The expectations of the table as a regular expression, with the quoted
+     * argument not captured; a constant, for the step definition.
+     */
+    public static final String PHRASES = "exist|not exist|be visible|not be visible|contain text " + QUOTED + "|not contain text " + QUOTED
+            + "|contain class name " + QUOTED + "|have class " + QUOTED + "|contain element with class name " + QUOTED
+            + "|not contain element with class name " + QUOTED + "|contain visible element with class name " + QUOTED
+            + "|contain invisible element with class name " + QUOTED;
+
+    private static final Pattern EXPECTATION = Pattern.compile("(.+?)(?: \"([^\"]*)\")?");
+    private static final Map<String, Expectation> TABLE = new LinkedHashMap<>();
+
+    static {
+        TABLE.put("exist", (steps, target, argument) -> {
+            try {
+                steps.findElement(target.by());
+            } catch (NoSuchElementException e) {
+                fail("page did not contain " + target);
+            }
+        });
+        TABLE.put("not exist", (steps, target, argument) -> {
+            try {
+                steps.findElement(target.by());
+                fail("page did contain " + target);
+            } catch (NoSuchElementException e) {
+                // pass
+            }
+        });
+        TABLE.put("be visible", (steps, target, argument) -> {
+            try {
+                steps.waitUntil(visibilityOfElementLocated(target.by()), "page element should be visible", target);
+            } catch (TimeoutException e) {
+                fail(target + " was not visible");
+            }
+        });
+        TABLE.put("not be visible", (steps, target, argument) -> {
+            try {
+                steps.waitUntil(invisibilityOfElementLocated(target.by()), "page element should not be visible", target);
+            } catch (TimeoutException e) {
+                fail(target + " was visible");
+            }
+        });
+        TABLE.put("contain text \"...\"", (steps, target, text) -> {
+            try {
+                steps.waitUntil(textToBePresentInElementLocated(target.by(), text), "page element should contain text", target);
+            } catch (TimeoutException e) {
+                fail(target + " did not contain text \"" + text + "\"; " + describeText(steps, target.by()));
+            }
+        });
+        TABLE.put("not contain text \"...\"", (steps, target, text) -> {
+            try {
+                steps.waitUntil(not(textToBePresentInElementLocated(target.by(), text)), "page element should not contain text", target);
+            } catch (TimeoutException e) {
+                fail(target + " did contain text \"" + text + "\"; " + describeText(steps, target.by()));
+            }
+        });
+        TABLE.put("contain class name \"...\"", (steps, target, className) -> {
+            try {
+                String classes = steps.findElement(target.by()).getAttribute("class");
+                if (classes == null || !classes.contains(className)) {
+                    fail(target + " did not contain class name \"" + className + "\"");
+                }
+            } catch (NoSuchElementException e) {
+                fail(target + " not found");
+            }
+        });
+        TABLE.put("have class \"...\"", (steps, target, className) -> {
+            try {
+                steps.findElement(target.withClassName(className));
+            } catch (NoSuchElementException e) {
+                fail(target + " did not have class name \"" + className + "\"");
+            }
+        });
+        TABLE.put("contain element with class name \"...\"", (steps, target, className) -> {
+            try {
+                steps.findElement(target.descendantWithClassName(className));
+            } catch (NoSuchElementException e) {
+                fail(target + " did not contain element with class name \"" + className + "\"");
+            }
+        });
+        TABLE.put("not contain element with class name \"...\"", (steps, target, className) -> {
+            try {
+                steps.findElement(target.descendantWithClassName(className));
+                fail(target + " did contain element with class name \"" + className + "\"");
+            } catch (NoSuchElementException e) {
+                // pass
+            }
+        });
+        TABLE.put("contain visible element with class name \"...\"", (steps, target, className) -> {
+            try {
+                steps.waitUntil(visibilityOfElementLocated(target.descendantWithClassName(className)), "page element should contain visible element",
+                        target.descendantWithClassName(className));
+            } catch (TimeoutException e) {
+                fail(target + " did not contain visible element with class name \"" + className + "\"");
+            }
+        });
+        TABLE.put("contain invisible element with class name \"...\"", (steps, target, className) -> {
+            try {
+                steps.waitUntil(invisibilityOfElementLocated(target.descendantWithClassName(className)), "page element should contain invisible element",
+                        target.descendantWithClassName(className));
+            } catch (TimeoutException e) {
+                fail(target + " did not contain invisible element with class name \"" + className + "\"");
+            }
+        });
+        // an expectation missing from the phrases could not be used in a step
+        Pattern phrases = Pattern.compile(PHRASES);
+        for (String phrase : TABLE.keySet()) {
+            if (!phrases.matcher(phrase.replace("\"...\"", "\"\"")).matches()) {
+                throw new IllegalStateException("expectation \"" + phrase + "\" is missing from the phrases");
+            }
+        }
+        if (PHRASES.split("\\|").length != TABLE.size()) {
+            throw new IllegalStateException("the phrases " + PHRASES + " do not match the expectations " + TABLE.keySet());
+        }
+    }
+
+    private ElementExpectations() {
+    }
+
+    /**
+     * Checks the expectation of a step, e.g. <code>contain text "Welcome"</code>.
+     *
+     * @throws AssertionError
+     *             If the expectation is not met, or unknown
+     */
+    public static void check(HtmlSteps steps, ElementTarget target, String expectation) throws Throwable {
+        Matcher matcher = EXPECTATION.matcher(expectation);
+        Expectation check = matcher.matches() ? TABLE.get(key(matcher)) : null;
+        if (check == null) {
+            fail("unknown expectation \"" + expectation + "\" of " + target + ", expected one of: " + getPhrases());
+        }
+        check.check(steps, target, matcher.group(2));
+    }
+
+    /**
+     * @return the expectations of the grammar, in the form they are looked up
+     */
+    public static Set<String> getPhrases() {
+        return Collections.unmodifiableSet(TABLE.keySet());
+    }
+
+    /**
+     * @return true if the expectation is in the table; for benchmarks
+     */
+    static boolean isKnown(String expectation) {
+        Matcher matcher = EXPECTATION.matcher(expectation);
+        return matcher.matches() && TABLE.containsKey(key(matcher));
+    }
+
+    private static String key(Matcher matcher) {
+        return matcher.group(2) == null ? matcher.group(1) : matcher.group(1) + " \"...\"";
+    }
+
+    private static String describeText(HtmlSteps steps, By by) {
+        try {
+            WebElement element = steps.findElement(by);
+            return "visible content of element was: " + element.getText();
+        } catch (NoSuchElementException e) {
+            return "element not found";
+        }
+    }
+
+    /**
+     * A check of the table.
+     */
+    @FunctionalInterface
+    private interface Expectation {
+        void check(HtmlSteps steps, ElementTarget target, String argument) throws Throwable;
+    }
+}
@@ -0,0 +1,183 @@
+/**
+ * Copyright 2015 Q24
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.kahu.hawaii.cucumber.glue.html;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.openqa.selenium.By;
+
+/**
+ * The element a step is about, as the step names it: a locator type ("id",
+ * "class name", "css selector" or "xpath expression") and its value. Steps
+ * that name no type locate by id.
+ */
+public final class ElementTarget {
+
+    /**
+     * The locator types of the step grammar.
+     */
+    public enum Type {
+        ID("id"), CLASS_NAME("class name"), CSS_SELECTOR("css selector"), XPATH_EXPRESSION("xpath expression");
+
+        private final String phrase;
+
+        Type(String phrase) {
+            this.phrase = phrase;
+        }
+
+        /**
+         * @param phrase
+         *            the locator type as the step names it, or null for id
+         */
+        public static Type of(String phrase) {
+            if (phrase == null) {
+                return ID;
+            }
+            for (Type type : values()) {
+                if (type.phrase.equals(phrase)) {
+                    return type;
+                }
+            }
+            throw new IllegalArgumentException("Unknown locator type \"" + phrase + "\"");
+        }
+    }
+
+    private final Type type;
+    private final String value;
+
+    public ElementTarget(Type type, String value) {
+        this.type = type;
+        this.value = value;
+    }
+
+    public By by() {
+        switch (type) {
+        case CLASS_NAME:
+            return By.className(value);
+        case CSS_SELECTOR:
+            return By.cssSelector(value);
+        case XPATH_EXPRESSION:
+            return By.xpath(value);
+        default:
+            return By.id(value);
+        }
+    }
+
+    /**
+     * @return the locator of the elements with the class name inside this
+     *         element
+     */
+    public By descendantWithClassName(String className) {
+        if (type == Type.XPATH_EXPRESSION) {
+            // the parentheses keep a union together
+            return By.xpath("(" + value + ")//*" + hasClass(className));
+        }
+        return By.cssSelector(appendToEach(" ." + cssIdentifier(className)));
+    }
+
+    /**
+     * @return the locator of this element, if it has the class name
+     */
+    public By withClassName(String className) {
+        if (type == Type.XPATH_EXPRESSION) {
+            return By.xpath("(" + value + ")" + hasClass(className));
+        }
+        return By.cssSelector(appendToEach("." + cssIdentifier(className)));
+    }
+
+    /**
+     * Appends to every selector of a selector list, e.g. "a, b" becomes
+     * "a .x, b .x" instead of "a, b .x".
+     */
+    private String appendToEach(String suffix) {
+        StringBuilder css = new StringBuilder();
+        for (String selector : splitSelectorList(toCss())) {
+            css.append(css.length() == 0 ? "" : ", ").append(selector.trim()).append(suffix);
+        }
+        return css.toString();
+    }
+
+    /**
+     * Splits a CSS selector list on its commas, but not on those inside
+     * parentheses, brackets or quotes, as in <code>:not(a, b)</code>.
+     */
+    static List<String> splitSelectorList(String css) {
+        List<String> selectors = new ArrayList<>();
+        int depth = 0;
+        char quote = 0;
+        int start = 0;
+        for (int i = 0; i < css.length(); i++) {
+            char c = css.charAt(i);
+            if (c == '\\') {
+                i++;
+            } else if (quote != 0) {
+                quote = c == quote ? 0 : quote;
+            } else if (c == '"' || c == '\'') {
+                quote = c;
+            } else if (c == '(' || c == '[') {
+                depth++;
+            } else if (c == ')' || c == ']') {
+                depth--;
+            } else if (c == ',' && depth == 0) {
+                selectors.add(css.substring(start, i));
+                start = i + 1;
+            }
+        }
+        selectors.add(css.substring(start));
+        return selectors;
+    }
+
+    private String toCss() {
+        switch (type) {
+        case CLASS_NAME:
+            return "." + cssIdentifier(value);
+        case CSS_SELECTOR:
+            return value;
+        default:
+            return "#" + cssIdentifier(value);
+        }
+    }
+
+    /**
+     * @return the name as a CSS identifier, with the characters that would
+     *         end it or change its meaning escaped
+     */
+    static String cssIdentifier(String name) {
+        StringBuilder identifier = new StringBuilder();
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (Character.isDigit(c) && (i == 0 || i == 1 && name.charAt(0) == '-')) {
+                // a digit can not start an identifier
+                identifier.append('\\').append(Integer.toHexString(c)).append(' ');
+            } else if (Character.isLetterOrDigit(c) || c == '-' || c == '_' || c > 0x7f) {
+                identifier.append(c);
+            } else {
+                identifier.append('\\').append(c);
+            }
+        }
+        return identifier.toString();
+    }
+
+    private static String hasClass(String className) {
+        return "[contains(concat(' ', normalize-space(@class), ' '), " + TextLocator.xpathLiteral(" " + className + " ") + ")]";
+    }
+
+    @Override
+    public String toString() {
+        return "element with " + type.phrase + " \"" + value + "\"";
+    }
+}
@@ -0,0 +1,122 @@
+/**
+ * Copyright 2015 Q24
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.kahu.hawaii.cucumber.glue.html;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The scenarios that failed in a run, kept in a local rerun file (one
+ * "location, id" per line) so that a next run can execute only those. During
+ * such a rerun the outcome of every scenario is kept in memory, for the
+ * merged report of the {@link RerunRunner}.
+ */
+public class FailedScenarios {
+
+    private static final String UNKNOWN_LOCATION = "-";
+
+    private final File file;
+    private final boolean rerun;
+    private final Map<String, Boolean> rerunOutcomes = new ConcurrentHashMap<>();
+
+    /**
+     * @param file
+     *            the rerun file
+     * @param rerun
+     *            true when this run is a rerun; otherwise the failures of a
+     *            previous run are removed from the file
+     */
+    public FailedScenarios(File file, boolean rerun) {
+        this.file = file;
+        this.rerun = rerun;
+        if (!rerun && file.isFile() && !file.delete()) {
+            System.err.println("Could not remove rerun file " + file);
+        }
+    }
+
+    public boolean isRerun() {
+        return rerun;
+    }
+
+    /**
+     * Records the outcome of a scenario: a failure is added to the rerun file
+     * on a normal run, any outcome is kept in memory on a rerun.
+     *
+     * @param location
+     *            the location as "path:line", may be null
+     */
+    public synchronized void record(String location, String id, boolean failed) {
+        if (rerun) {
+            if (location != null) {
+                rerunOutcomes.put(location, failed);
+            }
+            return;
+        }
+        if (!failed) {
+            return;
+        }
+        File parent = file.getAbsoluteFile().getParentFile();
+        if (parent != null) {
+            parent.mkdirs();
+        }
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(file, true), StandardCharsets.UTF_8)) {
+            writer.write((location == null ? UNKNOWN_LOCATION : location) + "\t" + id + System.lineSeparator());
+        } catch (IOException e) {
+            System.err.println("Could not write rerun file " + file + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * @return the failed scenarios in the rerun file as id per location; a
+     *         scenario recorded without a location is left out
+     */
+    public Map<String, String> load() throws IOException {
+        Map<String, String> failures = new LinkedHashMap<>();
+        if (!file.isFile()) {
+            return failures;
+        }
+        try (BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split("\t", 2);
+                if (fields.length == 2 && !UNKNOWN_LOCATION.equals(fields[0])) {
+                    failures.put(fields[0], fields[1]);
+                } else if (fields.length == 2) {
+                    System.err.println("Cannot rerun scenario " + fields[1] + ", its location was not recorded; register the ScenarioLocationFormatter plugin");
+                }
+            }
+        }
+        return failures;
+    }
+
+    /**
+     * @return whether the scenario at the location failed on the rerun, per
+     *         location; scenarios that did not run are absent
+     */
+    public Map<String, Boolean> getRerunOutcomes() {
+        return Collections.unmodifiableMap(rerunOutcomes);
+    }
+}
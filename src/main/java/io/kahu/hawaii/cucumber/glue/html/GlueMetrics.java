@@ -0,0 +1,77 @@
+/**
+ * Copyright 2015 Q24
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.kahu.hawaii.cucumber.glue.html;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Named counters of the glue, shared by all scenarios in the JVM. They are
+ * printed when the JVM exits, unless test.metrics.report is false.
+ */
+public final class GlueMetrics {
+
+    private static final Map<String, AtomicLong> COUNTERS = new ConcurrentSkipListMap<>();
+
+    static {
+        if (Boolean.parseBoolean(System.getProperty("test.metrics.report", "true"))) {
+            try {
+                Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                    if (!COUNTERS.isEmpty()) {
+                        System.err.println(report());
+                    }
+                }));
+            } catch (IllegalStateException e) {
+                // first counted while the JVM exits, too late to report
+            }
+        }
+    }
+
+    private GlueMetrics() {
+    }
+
+    public static void increment(String name) {
+        add(name, 1);
+    }
+
+    public static void add(String name, long delta) {
+        AtomicLong counter = COUNTERS.get(name);
+        if (counter == null) {
+            counter = COUNTERS.computeIfAbsent(name, key -> new AtomicLong());
+        }
+        counter.addAndGet(delta);
+    }
+
+    /**
+     * @return the value of the counter, 0 if it was never incremented
+     */
+    public static long get(String name) {
+        AtomicLong counter = COUNTERS.get(name);
+        return counter == null ? 0 : counter.get();
+    }
+
+    /**
+     * @return all counters as one line
+     */
+    public static String report() {
+        StringBuilder builder = new StringBuilder("glue metrics:");
+        for (Map.Entry<String, AtomicLong> entry : COUNTERS.entrySet()) {
+            builder.append(' ').append(entry.getKey()).append('=').append(entry.getValue().get());
+        }
+        return builder.toString();
+    }
+}
@@ -20,30 +20,43 @@ import static org.hamcrest.Matchers.equalTo;
 import static org.hamcrest.Matchers.is;
 import static org.junit.Assert.assertThat;
 import static org.junit.Assert.fail;
-import static org.openqa.selenium.support.ui.ExpectedConditions.invisibilityOfElementLocated;
 import static org.openqa.selenium.support.ui.ExpectedConditions.not;
+import static org.openqa.selenium.support.ui.ExpectedConditions.presenceOfElementLocated;
 import static org.openqa.selenium.support.ui.ExpectedConditions.textToBePresentInElement;
-import static org.openqa.selenium.support.ui.ExpectedConditions.textToBePresentInElementLocated;
 import static org.openqa.selenium.support.ui.ExpectedConditions.textToBePresentInElementValue;
 import static org.openqa.selenium.support.ui.ExpectedConditions.titleContains;
 import static org.openqa.selenium.support.ui.ExpectedConditions.titleIs;
 import static org.openqa.selenium.support.ui.ExpectedConditions.visibilityOfElementLocated;
 
+import java.io.File;
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URI;
 import java.net.URL;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Calendar;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
 
 import org.apache.commons.lang.StringUtils;
 import org.hamcrest.Matchers;
 import org.openqa.selenium.By;
 import org.openqa.selenium.JavascriptExecutor;
 import org.openqa.selenium.NoSuchElementException;
+import org.openqa.selenium.NotFoundException;
 import org.openqa.selenium.OutputType;
 import org.openqa.selenium.Proxy;
+import org.openqa.selenium.StaleElementReferenceException;
 import org.openqa.selenium.TimeoutException;
 import org.openqa.selenium.WebDriver;
 import org.openqa.selenium.WebDriverException;
@@ -57,13 +70,17 @@ import org.openqa.selenium.opera.OperaDriver;
 import org.openqa.selenium.phantomjs.PhantomJSDriver;
 import org.openqa.selenium.phantomjs.PhantomJSDriverService;
 import org.openqa.selenium.remote.CapabilityType;
+import org.openqa.selenium.remote.CommandInfo;
 import org.openqa.selenium.remote.DesiredCapabilities;
+import org.openqa.selenium.remote.HttpCommandExecutor;
 import org.openqa.selenium.remote.RemoteWebDriver;
 import org.openqa.selenium.safari.SafariDriver;
+import org.openqa.selenium.support.events.AbstractWebDriverEventListener;
 import org.openqa.selenium.support.events.EventFiringWebDriver;
 import org.openqa.selenium.support.ui.ExpectedCondition;
 import org.openqa.selenium.support.ui.ExpectedConditions;
-import org.openqa.selenium.support.ui.WebDriverWait;
+import org.openqa.selenium.support.ui.FluentWait;
+import org.openqa.selenium.support.ui.SystemClock;
 
 import com.gargoylesoftware.htmlunit.BrowserVersion;
 import com.google.common.base.Function;
@@ -85,6 +102,30 @@ public class HtmlSteps {
 
     private static final String PROXY_HOST_KEY = "test.proxyHost";
     private static final String PROXY_PORT_KEY = "test.proxyPort";
+    private static final String DEFAULT_BASE_URL = "http://target.kahuna.loc:8888";
+    private static final WaitStatistics WAIT_STATISTICS = new WaitStatistics(Long.getLong("test.wait.poll.min", 10), Long.getLong("test.wait.poll.max", 500),
+            Double.parseDouble(System.getProperty("test.wait.backoff", "1.5")));
+    private static final TimingHistory TIMING_HISTORY = createTimingHistory();
+    private static final ScenarioTimings SCENARIO_TIMINGS = ScenarioTimings.fromProperties();
+    private static final FailedScenarios FAILED_SCENARIOS = System.getProperty("test.rerun.file") == null ? null
+            : new FailedScenarios(new File(System.getProperty("test.rerun.file")), Boolean.getBoolean("test.rerun"));
+    private static final PagePerformance PAGE_PERFORMANCE = new PagePerformance(
+            System.getProperty("test.performance.results") == null ? null : new File(System.getProperty("test.performance.results")),
+            System.getProperty("test.performance.baseline") == null ? null : new File(System.getProperty("test.performance.baseline")),
+            Integer.getInteger("test.performance.threshold", 20));
+    private static final StubServer STUB_SERVER = createStubServer();
+    private static final CachePrimer CACHE_PRIMER = System.getProperty("test.warmup.urls") == null ? null
+            : new CachePrimer(Arrays.asList(StringUtils.stripAll(StringUtils.split(System.getProperty("test.warmup.urls"), ','))));
+    private static final SessionSnapshots SESSION_SNAPSHOTS = new SessionSnapshots(Long.getLong("test.session.snapshot.ttl", 1800000));
+    private static final BrowserMemory BROWSER_MEMORY = !Boolean.parseBoolean(System.getProperty("test.memory.monitor", "true")) ? null
+            : new BrowserMemory(Long.getLong("test.memory.max.heap", 0) * 1024 * 1024, Long.getLong("test.memory.max.rss", 0) * 1024 * 1024,
+                    Long.getLong("test.browser.max.age", 0));
+    private static final long LOAD_TIMEOUT = 30000;
+    private static final long ACCEPT_COOKIES_TIMEOUT = 2000;
+    private static final AtomicInteger WEBDRIVER_SESSIONS = new AtomicInteger();
+    private static final CircuitBreaker ENVIRONMENT = new CircuitBreaker(Integer.getInteger("test.circuit.threshold", 5),
+            Long.getLong("test.circuit.probe.interval", 10000));
+    private static PooledHttpClientFactory remoteTransport;
     private final String browser;
     private final boolean remote;
     private final String baseUrl;
@@ -93,30 +134,149 @@ public class HtmlSteps {
 
     private final String seleniumHub;
     private final boolean embedScreenshot;
+    private final int staleElementRetries;
+    private final String matrixProfile;
+    private final String javaScriptErrorPolicy;
+    private final String webDriverRecording;
+    private final String webDriverReplay;
+    private final boolean browserWindows;
+    private final boolean circuitPreflight;
+    private final boolean lazyBrowser;
+    private final String sessionCheckPath;
+    private final long commandTimeout;
+    private final long scenarioBudget;
     private EventFiringWebDriver webDriver;
+    private CommandWatchdog commandWatchdog;
+    private boolean browserScenario;
+    private boolean liteScenario;
+    private boolean browserRequested;
     private boolean acceptCookies;
+    private long scenarioStart;
+    private boolean retryingOnStaleElement;
+    private final Map<String, PageTiming> pageTimings = new HashMap<>();
+    private final List<PageTiming> pageRegressions = new ArrayList<>();
+    private PageTiming lastPageTiming;
+    private final List<String> javaScriptErrors = new ArrayList<>();
+    private boolean javaScriptErrorBufferInstalled;
+    private boolean javaScriptErrorLog;
+    private String traceSession;
 
     public HtmlSteps() {
         Properties properties = System.getProperties();
         this.browser = properties.containsKey("test.browser") ? System.getProperty("test.browser") : "chrome";
         this.remote = properties.containsKey("test.remote") ? Boolean.parseBoolean(System.getProperty("test.remote")) : false;
-        this.baseUrl = properties.containsKey("test.base.url") ? System.getProperty("test.base.url") : "http://target.kahuna.loc:8888";
+        this.baseUrl = STUB_SERVER != null ? STUB_SERVER.getUrl()
+                : properties.containsKey("test.base.url") ? System.getProperty("test.base.url") : DEFAULT_BASE_URL;
         this.seleniumHub = properties.containsKey("test.selenium.hub") ? System.getProperty("test.selenium.hub") : "http://localhost:4444/wd/hub";
         this.relativeUrl = properties.containsKey("test.relative.url") ? System.getProperty("test.relative.url") : "";
         this.timeout = properties.containsKey("test.timeout") ? Integer.parseInt(System.getProperty("test.timeout")) : 10;
         this.acceptCookies = properties.containsKey("test.disable.accept.cookies") ? !Boolean.parseBoolean(System.getProperty("test.disable.accept.cookies"))
                 : true;
         this.embedScreenshot = properties.containsKey("test.embed.screenshot") ? Boolean.parseBoolean(System.getProperty("test.embed.screenshot")) : true;
+        this.staleElementRetries = properties.containsKey("test.stale.element.retries") ? Integer.parseInt(System.getProperty("test.stale.element.retries")) : 3;
+        this.matrixProfile = System.getProperty("test.matrix.profile");
+        this.javaScriptErrorPolicy = properties.containsKey("test.javascript.errors") ? System.getProperty("test.javascript.errors") : "ignore";
+        this.webDriverRecording = System.getProperty("test.webdriver.record");
+        this.webDriverReplay = properties.containsKey("test.webdriver.replay") ? System.getProperty("test.webdriver.replay") : "target/webdriver";
+        this.browserWindows = properties.containsKey("test.browser.windows") ? Boolean.parseBoolean(System.getProperty("test.browser.windows")) : false;
+        this.circuitPreflight = properties.containsKey("test.circuit.preflight") ? Boolean.parseBoolean(System.getProperty("test.circuit.preflight")) : false;
+        this.sessionCheckPath = properties.containsKey("test.session.check.path") ? System.getProperty("test.session.check.path") : "/";
+        this.lazyBrowser = properties.containsKey("test.browser.lazy") ? Boolean.parseBoolean(System.getProperty("test.browser.lazy")) : true;
+        this.commandTimeout = properties.containsKey("test.command.timeout") ? Long.parseLong(System.getProperty("test.command.timeout")) : 300000;
+        this.scenarioBudget = properties.containsKey("test.scenario.budget") ? Long.parseLong(System.getProperty("test.scenario.budget")) : 0;
     }
 
+    /**
+     * @return the driver of the scenario, started on first use
+     */
     public WebDriver getWebDriver() {
-        return this.webDriver;
+        return driver();
+    }
+
+    private EventFiringWebDriver driver() {
+        // once per scenario, a browser that failed to start is not retried
+        if (webDriver == null && browserScenario && !browserRequested) {
+            try {
+                startWebDriver(liteScenario);
+            } catch (RuntimeException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new WebDriverException("Could not start the browser", e);
+            }
+        }
+        return webDriver;
     }
 
     public String getBaseUrl() {
         return baseUrl;
     }
 
+    /**
+     * @return the statistics on how long the conditions of
+     *         {@link #waitUntil(Function)} took to become true, shared by all
+     *         scenarios in this JVM
+     */
+    public static WaitStatistics getWaitStatistics() {
+        return WAIT_STATISTICS;
+    }
+
+    /**
+     * @return the timing history adaptive timeouts are derived from, or null
+     *         when adaptive timeouts are not enabled with
+     *         test.timeout.adaptive
+     */
+    public static TimingHistory getTimingHistory() {
+        return TIMING_HISTORY;
+    }
+
+    /**
+     * @return the failed scenarios of this run, or null when they are not
+     *         recorded because test.rerun.file is not set
+     */
+    public static FailedScenarios getFailedScenarios() {
+        return FAILED_SCENARIOS;
+    }
+
+    /**
+     * Starts the stub server when test.stub.mode is "record" or "replay".
+     * The glue then visits the stub server instead of test.base.url.
+     */
+    private static StubServer createStubServer() {
+        String mode = System.getProperty("test.stub.mode");
+        if (mode == null) {
+            return null;
+        }
+        if (!"record".equalsIgnoreCase(mode) && !"replay".equalsIgnoreCase(mode)) {
+            throw new IllegalStateException("Unsupported stub mode specified: " + mode);
+        }
+        StubServer server = new StubServer("record".equalsIgnoreCase(mode), System.getProperty("test.base.url", DEFAULT_BASE_URL),
+                new File(System.getProperty("test.stub.dir", "src/test/resources/stubs")),
+                Arrays.asList(StringUtils.split(System.getProperty("test.stub.ignore.params", ""), ',')),
+                Arrays.asList(StringUtils.split(System.getProperty("test.stub.match.headers", ""), ',')));
+        try {
+            server.start(System.getProperty("test.stub.host", "localhost"), Integer.getInteger("test.stub.port", 0));
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not start stub server", e);
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread(server::stop));
+        return server;
+    }
+
+    private static TimingHistory createTimingHistory() {
+        if (!Boolean.getBoolean("test.timeout.adaptive")) {
+            return null;
+        }
+        File file = new File(System.getProperty("test.timing.history", "target/timing-history.txt"));
+        double factor = Double.parseDouble(System.getProperty("test.timeout.adaptive.factor", "3"));
+        long min = Long.getLong("test.timeout.adaptive.min", 1000);
+        long max = Long.getLong("test.timeout.adaptive.max", 60000);
+        // 30 days
+        long maxAge = Long.getLong("test.timing.history.max.age", 2592000000L);
+        TimingHistory history = new TimingHistory(file, factor, min, max, maxAge);
+        Runtime.getRuntime().addShutdownHook(new Thread(history::save));
+        return history;
+    }
+
     /**
      * An expectation for checking the current url of a page.
      *
@@ -126,9 +286,17 @@ public class HtmlSteps {
      * @see https://code.google.com/p/selenium/issues/detail?id=6842
      */
     public static ExpectedCondition<Boolean> currentUrlIs(final String url) {
-        return driver -> {
-            String currentUrl = driver.getCurrentUrl();
-            return currentUrl == null ? false : currentUrl.equals(url);
+        return new ExpectedCondition<Boolean>() {
+            @Override
+            public Boolean apply(WebDriver driver) {
+                String currentUrl = driver.getCurrentUrl();
+                return currentUrl == null ? false : currentUrl.equals(url);
+            }
+
+            @Override
+            public String toString() {
+                return String.format("url to be \"%s\"", url);
+            }
         };
     }
 
@@ -142,16 +310,171 @@ public class HtmlSteps {
      * @see https://code.google.com/p/selenium/issues/detail?id=6842
      */
     public static ExpectedCondition<Boolean> currentUrlContains(final String url) {
-        return driver -> {
-            String currentUrl = driver.getCurrentUrl();
-            return currentUrl == null ? false : currentUrl.contains(url);
+        return new ExpectedCondition<Boolean>() {
+            @Override
+            public Boolean apply(WebDriver driver) {
+                String currentUrl = driver.getCurrentUrl();
+                return currentUrl == null ? false : currentUrl.contains(url);
+            }
+
+            @Override
+            public String toString() {
+                return String.format("url to contain \"%s\"", url);
+            }
         };
     }
 
-    @Before("@web")
+    /**
+     * Prepares the browser of a scenario. The browser is started when a step
+     * first uses it, so scenarios that fail before that, or do not need it,
+     * do not pay for the startup; set test.browser.lazy to false to start it
+     * here. Scenarios tagged @web-lite do not need a real browser and run on
+     * a pooled HtmlUnit driver, also when their feature is tagged @web.
+     */
+    @Before({ "@web,@web-lite" })
+    public void beforeScenario(Scenario scenario) throws Exception {
+        beforeScenario(scenario.getSourceTagNames().contains("@web-lite"));
+    }
+
     public void beforeScenario() throws Exception {
+        beforeScenario(false);
+    }
+
+    private void beforeScenario(boolean lite) throws Exception {
+        scenarioStart = System.currentTimeMillis();
+        browserScenario = true;
+        liteScenario = lite;
+        browserRequested = false;
+        if (!lazyBrowser) {
+            startWebDriver(lite);
+        }
+    }
+
+    private void startWebDriver(boolean lite) throws Exception {
+        long start = System.currentTimeMillis();
+        browserRequested = true;
+        // fail at once instead of waiting out the timeouts of a dead environment
+        ENVIRONMENT.check();
+        if (circuitPreflight) {
+            ENVIRONMENT.preflight(getProbeUrls());
+        }
+        int session = WEBDRIVER_SESSIONS.incrementAndGet();
+        boolean watched = !lite && (commandTimeout > 0 || scenarioBudget > 0);
         WebDriver driver;
-        if (StringUtils.containsIgnoreCase(browser, "chrome")) {
+        try {
+            if (lite) {
+                driver = HtmlUnitPool.acquire();
+            } else if (browserWindows) {
+                driver = WindowSessionDriver.open(() -> createWebDriver(session));
+            } else {
+                driver = createWebDriver(session);
+            }
+        } catch (Exception e) {
+            ENVIRONMENT.recordFailure("browser session creation", e, getProbeUrls());
+            throw e;
+        }
+        DriverReaper.track(driver);
+        try {
+            commandWatchdog = null;
+            if (watched && !(driver instanceof ReplayWebDriver)) {
+                // the driver service this JVM started, and the browser under it
+                Set<String> processes = remote ? Collections.<String> emptySet() : ProcessTree.serving(CommandExecutors.addressOf(driver));
+                // innermost, so that traces and recordings see the aborted command
+                commandWatchdog = CommandWatchdog.install(driver, commandTimeout, scenarioBudget > 0 ? scenarioStart + scenarioBudget : 0, processes);
+            }
+            if (TraceRecorder.isEnabled()) {
+                TracingCommandExecutor.install(driver);
+                traceSession = driver instanceof RemoteWebDriver ? String.valueOf(((RemoteWebDriver) driver).getSessionId())
+                        : driver.getClass().getSimpleName() + "@" + Integer.toHexString(System.identityHashCode(driver));
+            }
+            if (webDriverRecording != null && !RecordingCommandExecutor.install(driver, getRecordingFile(webDriverRecording, session))) {
+                System.err.println("Commands of " + browser + " can not be recorded");
+            }
+            webDriver = new EventFiringWebDriver(driver);
+            webDriver.register(new AbstractWebDriverEventListener() {
+                @Override
+                public void beforeNavigateTo(String url, WebDriver driver) {
+                    DriverReaper.touch(webDriver.getWrappedDriver());
+                }
+
+                @Override
+                public void beforeFindBy(By by, WebElement element, WebDriver driver) {
+                    DriverReaper.touch(webDriver.getWrappedDriver());
+                }
+
+                @Override
+                public void beforeScript(String script, WebDriver driver) {
+                    DriverReaper.touch(webDriver.getWrappedDriver());
+                }
+
+            });
+            javaScriptErrorLog = !"ignore".equalsIgnoreCase(javaScriptErrorPolicy) && JavaScriptErrors.hasBrowserLog(driver);
+            webDriver.manage().deleteAllCookies();
+            turnOnImplicitWaits();
+            if (CACHE_PRIMER != null && !outlivesScenario(driver)) {
+                CACHE_PRIMER.skipPriming();
+            } else if (CACHE_PRIMER != null && CACHE_PRIMER.startPriming(driver instanceof WindowSessionDriver ? ((WindowSessionDriver) driver).getBrowser() : driver)) {
+                primeCache();
+            }
+            GlueMetrics.increment("browser.started");
+            GlueMetrics.add("browser.startup.millis", System.currentTimeMillis() - start);
+        } catch (Exception | Error e) {
+            // the scenario will not get to quit the driver
+            webDriver = null;
+            DriverReaper.reap(driver);
+            throw e;
+        }
+    }
+
+    /**
+     * Counts a scenario that did not start a browser, and the startup time it
+     * saved, estimated from the average startup time so far.
+     */
+    private static void recordSkippedStartup() {
+        GlueMetrics.increment("browser.skipped");
+        long started = GlueMetrics.get("browser.started");
+        if (started > 0) {
+            GlueMetrics.add("browser.startup.saved.millis", GlueMetrics.get("browser.startup.millis") / started);
+        }
+    }
+
+    /**
+     * Samples the memory of a browser that outlives the scenario, at the end
+     * of the scenario, and recycles it when it crossed a threshold. A
+     * browser per scenario would get a single sample, which shows no trend.
+     */
+    private void sampleMemory() {
+        WebDriver driver = webDriver.getWrappedDriver();
+        if (!outlivesScenario(driver)) {
+            return;
+        }
+        Object browser = driver instanceof WindowSessionDriver ? ((WindowSessionDriver) driver).getBrowser() : driver;
+        String reason = BROWSER_MEMORY.sample(browser, driver);
+        if (reason == null) {
+            return;
+        }
+        if (driver instanceof WindowSessionDriver) {
+            ((WindowSessionDriver) driver).retireBrowser();
+        } else {
+            HtmlUnitPool.retire(driver);
+        }
+        System.err.println("Recycling " + browser.getClass().getSimpleName() + " after " + reason);
+        BROWSER_MEMORY.recycled(browser, reason);
+    }
+
+    /**
+     * @return true if the browser of a driver is used by later scenarios too:
+     *         the shared browser of window sessions, or a pooled driver
+     */
+    private static boolean outlivesScenario(WebDriver driver) {
+        return driver instanceof WindowSessionDriver || HtmlUnitPool.isPooled(driver);
+    }
+
+    private WebDriver createWebDriver(int session) throws Exception {
+        WebDriver driver;
+        if (StringUtils.containsIgnoreCase(browser, "replay")) {
+            driver = new ReplayWebDriver(getRecordingFile(webDriverReplay, session));
+        } else if (StringUtils.containsIgnoreCase(browser, "chrome")) {
             if (remote) {
                 DesiredCapabilities capabilities = DesiredCapabilities.chrome();
                 driver = createRemoteWebDriverForCapabilities(capabilities);
@@ -200,9 +523,17 @@ public class HtmlSteps {
         } else {
             throw new IllegalStateException("Unsupported browser specified");
         }
-        webDriver = new EventFiringWebDriver(driver);
-        webDriver.manage().deleteAllCookies();
-        turnOnImplicitWaits();
+        return driver;
+    }
+
+    /**
+     * @return the command recording of a browser session: the file itself,
+     *         or the numbered file of the session in a directory of
+     *         recordings
+     */
+    private static File getRecordingFile(String path, int session) {
+        File file = new File(path);
+        return file.isFile() ? file : new File(file, "session-" + session + ".jsonl.gz");
     }
 
     private WebDriver createRemoteWebDriverForCapabilities(DesiredCapabilities capabilities) throws Exception {
@@ -211,10 +542,33 @@ public class HtmlSteps {
         if (proxy != null) {
             capabilities.setCapability(CapabilityType.PROXY, getHttpProxy());
         }
-        driver = new RemoteWebDriver(new URL(seleniumHub), capabilities);
+        if (!"ignore".equalsIgnoreCase(javaScriptErrorPolicy)) {
+            capabilities.setCapability(CapabilityType.LOGGING_PREFS, JavaScriptErrors.loggingPreferences());
+        }
+        PooledHttpClientFactory transport = getRemoteTransport();
+        if (transport == null) {
+            driver = new RemoteWebDriver(new URL(seleniumHub), capabilities);
+        } else {
+            driver = new RemoteWebDriver(new HttpCommandExecutor(Collections.<String, CommandInfo> emptyMap(), new URL(seleniumHub), transport),
+                    capabilities);
+        }
         return driver;
     }
 
+    /**
+     * @return the transport shared by all remote drivers, created with the
+     *         first of them, so that a run with local browsers has no pool
+     *         and no idle connection evictor; null for the default transport
+     */
+    private static synchronized PooledHttpClientFactory getRemoteTransport() {
+        if (remoteTransport == null && !"default".equalsIgnoreCase(System.getProperty("test.remote.transport"))) {
+            remoteTransport = new PooledHttpClientFactory(Integer.getInteger("test.remote.pool.size", 20),
+                    Integer.getInteger("test.remote.connect.timeout", 120000), Integer.getInteger("test.remote.socket.timeout", 10800000),
+                    Long.getLong("test.remote.keepalive", 30000), Boolean.getBoolean("test.remote.compression"));
+        }
+        return remoteTransport;
+    }
+
     private String getOsSpecificPhantomDriverPath() {
         String osName = System.getProperty("os.name").toLowerCase();
         String returnPath = "bin/linux/phantomjs";
@@ -226,60 +580,311 @@ public class HtmlSteps {
         return returnPath;
     }
 
-    @After("@web")
+    @After({ "@web,@web-lite" })
     public void afterScenario(Scenario scenario) {
-        if (scenario.isFailed() && embedScreenshot) {
+        browserScenario = false;
+        if (!browserRequested) {
+            recordSkippedStartup();
+        }
+        // no driver when no step used it, or it failed to start
+        if (webDriver != null) {
+            String abortReason = commandWatchdog == null ? null : commandWatchdog.getAbortReason();
+            commandWatchdog = null;
             try {
-                byte[] screenshot = webDriver.getScreenshotAs(OutputType.BYTES);
-                scenario.embed(screenshot, "image/png");
-            } catch (WebDriverException somePlatformsDontSupportScreenshots) {
-                System.err.println(somePlatformsDontSupportScreenshots.getMessage());
+                if (abortReason != null) {
+                    scenario.write("session aborted by the watchdog: " + abortReason);
+                }
+                if (matrixProfile != null) {
+                    scenario.write("browser profile: " + matrixProfile);
+                }
+                for (PageTiming regression : pageRegressions) {
+                    scenario.write("page load regression, baseline " + PAGE_PERFORMANCE.getBaselineLoad(regression.getPath()) + "ms: " + regression);
+                }
+                if (abortReason == null) {
+                    drainJavaScriptErrors();
+                }
+                for (String error : javaScriptErrors) {
+                    scenario.write("javascript error: " + error);
+                }
+                // an aborted browser has nothing more to tell
+                if (scenario.isFailed() && embedScreenshot && abortReason == null) {
+                    try {
+                        byte[] screenshot = driver().getScreenshotAs(OutputType.BYTES);
+                        scenario.embed(screenshot, "image/png");
+                    } catch (WebDriverException | UnsupportedOperationException somePlatformsDontSupportScreenshots) {
+                        System.err.println(somePlatformsDontSupportScreenshots.getMessage());
+                    }
+                }
+                if (BROWSER_MEMORY != null && abortReason == null) {
+                    sampleMemory();
+                }
+            } finally {
+                WebDriver driver = webDriver.getWrappedDriver();
+                webDriver = null;
+                DriverReaper.quit(driver);
             }
         }
-        webDriver.quit();
-        webDriver = null;
+        SCENARIO_TIMINGS.record(ScenarioLocationFormatter.currentLocation(), scenario.getId(), System.currentTimeMillis() - scenarioStart);
+        // recorded as failed too when the policy fails it below
+        boolean javaScriptFailure = "fail".equalsIgnoreCase(javaScriptErrorPolicy) && !javaScriptErrors.isEmpty() && !scenario.isFailed();
+        if (FAILED_SCENARIOS != null) {
+            FAILED_SCENARIOS.record(ScenarioLocationFormatter.currentLocation(), scenario.getId(), scenario.isFailed() || javaScriptFailure);
+        }
+        if (javaScriptFailure) {
+            throw new AssertionError(javaScriptErrors.size() + " javascript error(s) during scenario, first: " + javaScriptErrors.get(0));
+        }
     }
 
     @When("^I visit page \"([^\"]*)\"$")
     public void I_visit_page(String path) throws Throwable {
-        webDriver.get(getUrl() + path);
-        waitForLoad();
+        navigateTo(path);
+        waitForLoad(path);
+        afterNavigation(path);
     }
 
     @When("^I visit page \"([^\"]*)\" and accept cookies$")
     public void I_visit_page_and_accept_cookies(String path) throws Throwable {
-        webDriver.get(getUrl() + path);
+        navigateTo(path);
         acceptCookies();
-        waitForLoad();
+        waitForLoad(path);
+        afterNavigation(path);
+    }
+
+    private void navigateTo(String path) {
+        // the error buffer does not survive the navigation
+        drainJavaScriptErrorBuffer();
+        try {
+            driver().get(getUrl() + path);
+        } catch (WebDriverException e) {
+            ENVIRONMENT.recordFailure("navigation to " + getUrl() + path, e, getProbeUrls());
+            throw e;
+        }
+    }
+
+    /**
+     * @return the urls that tell whether the environment is up: the
+     *         application, and the selenium hub when the browser is remote;
+     *         probes bypass the stub server, which would record them
+     */
+    private List<String> getProbeUrls() {
+        List<String> urls = new ArrayList<>();
+        if (STUB_SERVER == null) {
+            urls.add(getUrl());
+        } else if (STUB_SERVER.getTarget() != null) {
+            urls.add(STUB_SERVER.getTarget() + relativeUrl);
+        }
+        if (remote) {
+            urls.add(StringUtils.removeEnd(seleniumHub, "/") + "/status");
+        }
+        return urls;
+    }
+
+    private void afterNavigation(String path) {
+        installJavaScriptErrorBuffer();
+        collectPageTiming(path);
+    }
+
+    /**
+     * Installs the error buffer in the current page, for browsers without a
+     * browser log.
+     */
+    private void installJavaScriptErrorBuffer() {
+        if (!"ignore".equalsIgnoreCase(javaScriptErrorPolicy) && !javaScriptErrorLog) {
+            JavaScriptErrors.install(driver());
+            javaScriptErrorBufferInstalled = true;
+        }
+    }
+
+    /**
+     * Collects the errors of the browser log, which outlives navigations, or
+     * of the buffer of the current page; at the end of the scenario.
+     */
+    private void drainJavaScriptErrors() {
+        if (javaScriptErrorLog) {
+            List<String> errors = JavaScriptErrors.drainBrowserLog(driver());
+            GlueMetrics.add("javascript.errors", errors.size());
+            javaScriptErrors.addAll(errors);
+        } else {
+            drainJavaScriptErrorBuffer();
+        }
+    }
+
+    /**
+     * Collects the errors of the buffer of the current page, before it may
+     * be left.
+     */
+    private void drainJavaScriptErrorBuffer() {
+        if (!javaScriptErrorBufferInstalled) {
+            return;
+        }
+        List<String> errors = JavaScriptErrors.drain(driver());
+        javaScriptErrorBufferInstalled = false;
+        GlueMetrics.add("javascript.errors", errors.size());
+        javaScriptErrors.addAll(errors);
+    }
+
+    /**
+     * Visits the warm-up pages of test.warmup.urls, to fill the caches of a
+     * new browser that outlives its scenario before its first scenario. The
+     * state the pages leave behind, apart from the caches, is cleared again.
+     */
+    private void primeCache() {
+        long start = System.currentTimeMillis();
+        Map<String, Long> loads = new HashMap<>();
+        for (String path : CACHE_PRIMER.getPaths()) {
+            try {
+                driver().get(getUrl() + path);
+                waitForLoad(path);
+                PageTiming timing = PageTiming.collect(driver(), path);
+                if (timing != null) {
+                    loads.put(path, timing.getLoad());
+                }
+            } catch (WebDriverException e) {
+                System.err.println("Could not prime the cache with " + path + ": " + e.getMessage());
+            }
+        }
+        clearBrowserState();
+        CACHE_PRIMER.recordPriming(System.currentTimeMillis() - start, loads);
+    }
+
+    private void clearBrowserState() {
+        driver().manage().deleteAllCookies();
+        try {
+            driver().executeScript("try { localStorage.clear(); sessionStorage.clear(); } catch (e) { }");
+        } catch (WebDriverException | UnsupportedOperationException e) {
+            // scripts not supported, no storage to clear
+        }
+    }
+
+    /**
+     * Collects the navigation timing of the page just visited, stores it in
+     * the results file and checks it against the baseline.
+     */
+    private void collectPageTiming(String path) {
+        PageTiming timing = PageTiming.collect(driver(), path);
+        if (timing == null) {
+            return;
+        }
+        if (CACHE_PRIMER != null && !pageTimings.containsKey(path)) {
+            CACHE_PRIMER.recordFirstVisit(path, timing.getLoad());
+        }
+        pageTimings.put(path, timing);
+        lastPageTiming = timing;
+        PAGE_PERFORMANCE.record(timing);
+        if (PAGE_PERFORMANCE.isRegression(timing)) {
+            GlueMetrics.increment("page.load.regressions");
+            pageRegressions.add(timing);
+        }
     }
 
     public void waitForLoad() {
+        waitForLoad(null);
+    }
+
+    private void waitForLoad(String path) {
+        if (!isJavascriptEnabled()) {
+            // HtmlUnit without scripts has loaded the page when get returns
+            return;
+        }
         ExpectedCondition<Boolean> pageLoadCondition = driver -> ((JavascriptExecutor) driver).executeScript("return document.readyState").equals("complete");
-        WebDriverWait wait = new WebDriverWait(webDriver, 30);
-        wait.until(pageLoadCondition);
+        try {
+            waitUntil(pageLoadCondition, TimingHistory.keyOf("waitForLoad", path), LOAD_TIMEOUT);
+        } catch (TimeoutException e) {
+            ENVIRONMENT.recordFailure("page load of " + (path == null ? "the current page" : path), e, getProbeUrls());
+            throw e;
+        }
+        ENVIRONMENT.recordSuccess();
     }
     
     public void waitForJQueryToFinish() {
+        if (!isJavascriptEnabled()) {
+            return;
+        }
     	try {
 	        ExpectedCondition<Boolean> ajaxCondition = driver -> (Boolean)((JavascriptExecutor) driver).executeScript("return window.jQuery != undefined && jQuery.active === 0");
-	        WebDriverWait wait = new WebDriverWait(webDriver, 30);
-	        wait.until(ajaxCondition);
+	        waitUntil(ajaxCondition, "waitForJQueryToFinish", LOAD_TIMEOUT);
     	}
     	catch (TimeoutException e) {
     		// this is a timeout (obviously) but since we were supposed to wait anyway, swallow the exception
     	}
     }
     
+    /**
+     * Logs the user in through the login page, or restores the session
+     * captured at the first login of the user in this run. A restored
+     * session is checked by visiting test.session.check.path: when the
+     * application sends the browser back to the login page, the session is
+     * rejected and the user logs in through the page again.
+     */
+    @When("^I am logged in as \"([^\"]*)\" through page \"([^\"]*)\" and button \"([^\"]*)\" with the fields?$")
+    public void I_am_logged_in_as(String user, String loginPath, String button, DataTable fields) throws Throwable {
+        SessionSnapshots.Snapshot snapshot = SESSION_SNAPSHOTS.get(user);
+        if (snapshot != null) {
+            if (restoreSession(snapshot, loginPath)) {
+                GlueMetrics.increment("session.restored");
+                return;
+            }
+            System.err.println("Session of " + user + " rejected, logging in again");
+            GlueMetrics.increment("session.rejected");
+            SESSION_SNAPSHOTS.invalidate(user);
+            clearBrowserState();
+        }
+        long start = System.currentTimeMillis();
+        I_visit_page(loginPath);
+        I_fill_in_the_fields(fields);
+        I_click_on_button(button);
+        ExpectedCondition<Boolean> leftLoginPage = driver -> !isOnPage(driver.getCurrentUrl(), loginPath);
+        waitUntil(leftLoginPage, "I am logged in as", loginPath);
+        SESSION_SNAPSHOTS.capture(user, driver(), URI.create(getUrl()).getHost(), isJavascriptEnabled());
+        GlueMetrics.increment("session.logins");
+        GlueMetrics.add("session.login.millis", System.currentTimeMillis() - start);
+    }
+
+    /**
+     * @return false if the application rejected the session
+     */
+    private boolean restoreSession(SessionSnapshots.Snapshot snapshot, String loginPath) throws Throwable {
+        // cookies can only be set on a page of their domain
+        navigateTo(sessionCheckPath);
+        snapshot.restore(driver(), isJavascriptEnabled());
+        I_visit_page(sessionCheckPath);
+        return !isOnPage(driver().getCurrentUrl(), loginPath);
+    }
+
+    /**
+     * @return true if the url is of the page at the path, whatever its query
+     *         or fragment; a prefix of the path is another page, so that the
+     *         login page can be the root
+     */
+    private boolean isOnPage(String url, String path) {
+        return pageOf(url).equals(pageOf(getUrl() + path));
+    }
+
+    private static String pageOf(String url) {
+        try {
+            URI uri = URI.create(url);
+            if (uri.isOpaque() || uri.getHost() == null) {
+                return url;
+            }
+            int port = uri.getPort() < 0 ? uri.toURL().getDefaultPort() : uri.getPort();
+            return uri.getScheme().toLowerCase() + "://" + uri.getHost().toLowerCase() + ":" + port + (uri.getPath().isEmpty() ? "/" : uri.getPath());
+        } catch (IllegalArgumentException | MalformedURLException e) {
+            return url;
+        }
+    }
+
     @When("^I wait for jQuery to finish$")
     public void I_wait_for_JQuery_to_finish() throws Throwable {
     	waitForJQueryToFinish();
     }
     
     public void waitForAngularJSToFinish() {
+        if (!isJavascriptEnabled()) {
+            return;
+        }
     	try {
 	        ExpectedCondition<Boolean> ajaxCondition = driver -> (Boolean)((JavascriptExecutor) driver).executeScript("return window.angular != undefined && angular.element(document.body).injector().get('$http').pendingRequests.length === 0");
-	        WebDriverWait wait = new WebDriverWait(webDriver, 30);
-	        wait.until(ajaxCondition);
+	        waitUntil(ajaxCondition, "waitForAngularJSToFinish", LOAD_TIMEOUT);
     	}
     	catch (TimeoutException e) {
     		// this is a timeout (obviously) but since we were supposed to wait anyway, swallow the exception
@@ -298,22 +903,22 @@ public class HtmlSteps {
 
     @When("^I fill \"([^\"]*)\" in field \"([^\"]*)\"$")
     public void I_fill_in_field(String value, String id) throws Throwable {
-        findElementById(id).sendKeys(value);
+        retryOnStaleElement(() -> findElementById(id).sendKeys(value));
     }
 
     @When("^I clear field \"([^\"]*)\"$")
     public void I_clear_field(String id) throws Throwable {
-        findElementById(id).clear();
+        retryOnStaleElement(() -> findElementById(id).clear());
     }
 
     @When("^I fill date (.*) in field \"([^\"]*)\"$")
     public void I_fill_date_in_field(@Transform(ChronicConverter.class) Calendar cal, String id) throws Throwable {
-        findElementById(id).sendKeys(formatDate(cal));
+        retryOnStaleElement(() -> findElementById(id).sendKeys(formatDate(cal)));
     }
 
     @When("^I fill time (.*) in field \"([^\"]*)\"$")
     public void I_fill_time_in_field(@Transform(ChronicConverter.class) Calendar cal, String id) throws Throwable {
-        findElementById(id).sendKeys(formatTime(cal));
+        retryOnStaleElement(() -> findElementById(id).sendKeys(formatTime(cal)));
     }
 
     @When("^I choose radio button \"([^\"]*)\"$")
@@ -329,19 +934,23 @@ public class HtmlSteps {
      * @throws Throwable
      */
     public void I_check_checkbox(String id) throws Throwable {
-        List<WebElement> elements = webDriver.findElements(By.cssSelector("label[for='" + id + "']"));
-        WebElement element = null;
+        List<WebElement> elements = driver().findElements(By.cssSelector("label[for='" + id + "']"));
+        By by = null;
         if (elements != null) {
             if (elements.size() > 1) {
-                element = findVisibleElement(By.cssSelector("label[for='" + id + "']:first-child"));
+                by = By.cssSelector("label[for='" + id + "']:first-child");
             } else {
-                element = findVisibleElement(By.cssSelector("label[for='" + id + "']"));
+                by = By.cssSelector("label[for='" + id + "']");
             }
         } else {
             fail("Checkbox element label[for='" + id + "'] not found");
         }
-        scrollToElement(element);
-        moveTo(element).click().perform();
+        By label = by;
+        retryOnStaleElement(() -> {
+            WebElement element = findVisibleElement(label);
+            scrollToElement(element);
+            click(element);
+        });
 
         // While fixing SUPDEV-1903 I refactored above code.
         // However above code worked as after fixing the issues with the quotes.
@@ -360,14 +969,7 @@ public class HtmlSteps {
 
     @When("^I select \"([^\"]*)\" from drop-down list \"([^\"]*)\"$")
     public void I_select_from_drop_down_list(String value, String id) throws Throwable {
-        WebElement element = findElementById(id);
-        List<WebElement> options = element.findElements(By.tagName("option"));
-        for (WebElement option : options) {
-            if (option.getText().equals(value) || option.getAttribute("value").equals(value)) {
-                moveTo(option).click().perform();
-                break;
-            }
-        }
+        retryOnStaleElement(() -> selectOption(findElementById(id), value));
     }
 
     @When("^I fill in the form?$")
@@ -380,91 +982,90 @@ public class HtmlSteps {
         for (List<String> row : data.raw()) {
             String id = row.get(0);
             String value = row.get(1);
-            WebElement element = findVisibleElementById(id);
-            String tagName = element.getTagName();
-            String type = element.getAttribute("type");
-            if ("input".equalsIgnoreCase(tagName)) {
-                if ("checkbox".equalsIgnoreCase(type)) {
-                    moveTo(element).click().perform();
-                } else if ("radio".equalsIgnoreCase(type)) {
-                    moveTo(element).click().perform();
-                } else {
-                    if (value != null) {
-                        if (value.startsWith("date:")) {
-                            String chronic = value.replaceFirst("date:", "").trim();
-                            Calendar cal = parseChronic(chronic);
-                            element.sendKeys(formatDate(cal));
-                        } else if (value.startsWith("time:")) {
-                            String chronic = value.replaceFirst("time:", "").trim();
-                            Calendar cal = parseChronic(chronic);
-                            element.sendKeys(formatTime(cal));
-                        } else {
-                            element.sendKeys(value);
-                        }
-                    }
-                }
-            } else if ("select".equalsIgnoreCase(tagName)) {
-                List<WebElement> options = element.findElements(By.tagName("option"));
-                for (WebElement option : options) {
-                    if (option.getText().equals(value) || option.getAttribute("value").equals(value)) {
-                        moveTo(option).click().perform();
-                        break;
+            retryOnStaleElement(() -> fillField(findVisibleElementById(id), value));
+        }
+    }
+
+    private void fillField(WebElement element, String value) {
+        String tagName = element.getTagName();
+        String type = element.getAttribute("type");
+        if ("input".equalsIgnoreCase(tagName)) {
+            if ("checkbox".equalsIgnoreCase(type)) {
+                click(element);
+            } else if ("radio".equalsIgnoreCase(type)) {
+                click(element);
+            } else {
+                if (value != null) {
+                    if (value.startsWith("date:")) {
+                        String chronic = value.replaceFirst("date:", "").trim();
+                        Calendar cal = parseChronic(chronic);
+                        element.sendKeys(formatDate(cal));
+                    } else if (value.startsWith("time:")) {
+                        String chronic = value.replaceFirst("time:", "").trim();
+                        Calendar cal = parseChronic(chronic);
+                        element.sendKeys(formatTime(cal));
+                    } else {
+                        element.sendKeys(value);
                     }
                 }
-            } else if ("label".equalsIgnoreCase(tagName)) {
-                moveTo(element).click().perform();
-            } else {
-                element.sendKeys(value);
+            }
+        } else if ("select".equalsIgnoreCase(tagName)) {
+            selectOption(element, value);
+        } else if ("label".equalsIgnoreCase(tagName)) {
+            click(element);
+        } else {
+            element.sendKeys(value);
+        }
+    }
+
+    private void selectOption(WebElement select, String value) {
+        List<WebElement> options = select.findElements(By.tagName("option"));
+        for (WebElement option : options) {
+            if (option.getText().equals(value) || option.getAttribute("value").equals(value)) {
+                click(option);
+                break;
             }
         }
     }
 
     @When("^I click on button \"([^\"]*)\"$")
     public void I_click_on_button(String id) throws Throwable {
-        WebElement element = findVisibleAndClickableElement(By.id(id));
-        moveTo(element).click().perform();
+        clickOnVisibleAndClickableElement(By.id(id));
     }
 
     @When("^I click on button with text \"([^\"]*)\"$")
     public void I_click_on_button_with_text(String text) throws Throwable {
-        WebElement element = findVisibleElement(By.xpath("//button[text()='" + text + "']"));
-        moveTo(element).click().perform();
+        clickOnVisibleElement(TextLocator.buttonWithText(text));
     }
 
     @When("^I click on button with text containing \"([^\"]*)\"$")
     public void I_click_on_button_with_text_containing(String text) throws Throwable {
-        WebElement element = findVisibleElement(By.xpath("//button[contains(text(), '" + text + "')]"));
-        moveTo(element).click().perform();
+        clickOnVisibleElement(TextLocator.buttonWithTextContaining(text));
     }
 
     @When("^I click on element \"([^\"]*)\"$")
     public void I_click_on_element(String id) throws Throwable {
-        WebElement element = findVisibleElementById(id);
-        moveTo(element).click().perform();
+        clickOnVisibleElement(By.id(id));
     }
 
     @When("^I click on element with id \"([^\"]*)\"$")
     public void I_click_on_element_with_id(String id) throws Throwable {
-        WebElement element = findVisibleElementById(id);
-        moveTo(element).click().perform();
+        clickOnVisibleElement(By.id(id));
     }
 
     @When("^I click on link \"([^\"]*)\"$")
     public void I_click_on_link(String id) throws Throwable {
-        WebElement element = findVisibleElement(By.cssSelector("a#" + id));
-        moveTo(element).click().perform();
+        clickOnVisibleElement(By.cssSelector("a#" + id));
     }
 
     @When("^I click on link with text \"([^\"]*)\"$")
     public void I_click_on_link_with_text(String linkText) throws Throwable {
-        WebElement element = findVisibleElement(By.linkText(linkText));
-        moveTo(element).click().perform();
+        clickOnVisibleElement(By.linkText(linkText));
     }
 
     @When("^I click on link with text containing \"([^\"]*)\"$")
     public void I_click_on_link_with_text_containing(String linkText) throws Throwable {
-        WebElement element = findVisibleElement(By.partialLinkText(linkText));
-        moveTo(element).click().perform();
+        clickOnVisibleElement(By.partialLinkText(linkText));
     }
 
     @When("^I wait (\\d+) seconds?$")
@@ -484,424 +1085,245 @@ public class HtmlSteps {
 
     @When("^I select an iframe with name \"([^\"]*)\"$")
     public void I_select_an_iframe_with_name(String text) throws Throwable {
-        webDriver.switchTo().frame(text);
+        driver().switchTo().frame(text);
     }
 
     @When("^I select the parent window")
     public void I_select_the_parent_window() throws Throwable {
-        webDriver.switchTo().defaultContent();
+        driver().switchTo().defaultContent();
     }
 
     @When("^I click on input with value \"([^\"]*)\"$")
     public void I_click_on_input_with_value(String text) throws Throwable {
-        WebElement element = findElement(By.xpath("//input[contains(@value,'" + text + "')]"));
-        moveTo(element).click().perform();
+        By by = TextLocator.inputWithValueContaining(text);
+        retryOnStaleElement(() -> {
+            // the locator does not wait implicitly
+            waitUntil(presenceOfElementLocated(by), "I click on input with value", by);
+            click(findElement(by));
+        });
     }
 
     @Then("^current url should be \"([^\"]*)\"$")
     public void current_url_should_be(String url) throws Throwable {
         try {
-            waitUntil(currentUrlIs(url));
+            waitUntil(currentUrlIs(url), "current url should be", url);
         } catch (TimeoutException e) {
-            assertThat(webDriver.getCurrentUrl(), is(equalTo(url)));
+            assertThat(driver().getCurrentUrl(), is(equalTo(url)));
         }
     }
 
     @Then("^current url should not be \"([^\"]*)\"$")
     public void current_url_should_not_be(String url) throws Throwable {
         try {
-            waitUntil(not(currentUrlIs(url)));
+            waitUntil(not(currentUrlIs(url)), "current url should not be", url);
         } catch (TimeoutException e) {
-            assertThat(webDriver.getCurrentUrl(), is(Matchers.not(equalTo(url))));
+            assertThat(driver().getCurrentUrl(), is(Matchers.not(equalTo(url))));
         }
     }
 
     @Then("^current url should contain \"([^\"]*)\"$")
     public void current_url_should_contain(final String url) throws Throwable {
         try {
-            waitUntil(currentUrlContains(url));
+            waitUntil(currentUrlContains(url), "current url should contain", url);
         } catch (TimeoutException e) {
-            assertThat(webDriver.getCurrentUrl(), containsString(url));
+            assertThat(driver().getCurrentUrl(), containsString(url));
         }
     }
 
     @Then("^current url should not contain \"([^\"]*)\"$")
     public void current_url_should_not_contain(String url) throws Throwable {
         try {
-            waitUntil(not(currentUrlContains(url)));
+            waitUntil(not(currentUrlContains(url)), "current url should not contain", url);
         } catch (TimeoutException e) {
-            assertThat(webDriver.getCurrentUrl(), Matchers.not(containsString(url)));
+            assertThat(driver().getCurrentUrl(), Matchers.not(containsString(url)));
         }
     }
 
     @Then("^page title should be \"([^\"]*)\"$")
     public void page_title_should_be(String title) throws Throwable {
         try {
-            waitUntil(titleIs(title));
+            waitUntil(titleIs(title), "page title should be", title);
         } catch (TimeoutException e) {
-            assertThat(webDriver.getTitle(), is(equalTo(title)));
+            assertThat(driver().getTitle(), is(equalTo(title)));
         }
     }
 
     @Then("^page title should not be \"([^\"]*)\"$")
     public void page_title_should_not_be(String title) throws Throwable {
         try {
-            waitUntil(not(titleIs(title)));
+            waitUntil(not(titleIs(title)), "page title should not be", title);
         } catch (TimeoutException e) {
-            assertThat(webDriver.getTitle(), is(Matchers.not(equalTo(title))));
+            assertThat(driver().getTitle(), is(Matchers.not(equalTo(title))));
         }
     }
 
     @Then("^page title should contain \"([^\"]*)\"$")
     public void page_title_should_contain(String title) throws Throwable {
         try {
-            waitUntil(titleContains(title));
+            waitUntil(titleContains(title), "page title should contain", title);
         } catch (TimeoutException e) {
-            assertThat(webDriver.getTitle(), containsString(title));
+            assertThat(driver().getTitle(), containsString(title));
         }
     }
 
     @Then("^page title should not contain \"([^\"]*)\"$")
     public void page_title_should_not_contain(String title) throws Throwable {
         try {
-            waitUntil(not(titleContains(title)));
+            waitUntil(not(titleContains(title)), "page title should not contain", title);
         } catch (TimeoutException e) {
-            assertThat(webDriver.getTitle(), Matchers.not(containsString(title)));
+            assertThat(driver().getTitle(), Matchers.not(containsString(title)));
         }
     }
 
-    @Then("^page should contain element \"([^\"]*)\"$")
+    /**
+     * Checks an element, in the grammar
+     * <code>page element [with &lt;locator type&gt;] "&lt;value&gt;" should &lt;expectation&gt;</code>;
+     * see {@link ElementExpectations} for the expectations.
+     */
+    @Then("^page element(?: with (id|class name|css selector|xpath expression))? \"([^\"]*)\" should (" + ElementExpectations.PHRASES + ")$")
+    public void page_element_should(String type, String value, String expectation) throws Throwable {
+        ElementExpectations.check(this, new ElementTarget(ElementTarget.Type.of(type), value), expectation);
+    }
+
+    @Then("^page should (not )?contain element(?: with (id|class name|css selector|xpath expression))? \"([^\"]*)\"$")
+    public void page_should_contain(String not, String type, String value) throws Throwable {
+        page_element_should(type, value, not == null ? "exist" : "not exist");
+    }
+
+    // the step methods of the phrasings the grammar replaced, for glue that calls them
+
     public void page_should_contain_element(String id) throws Throwable {
-        try {
-            findElement(By.id(id));
-        } catch (NoSuchElementException e) {
-            fail("page did not contain element with id \"" + id + "\"");
-        }
+        page_should_contain(null, null, id);
     }
 
-    @Then("^page should not contain element \"([^\"]*)\"$")
     public void page_should_not_contain_element(String id) throws Throwable {
-        try {
-            findElement(By.id(id));
-            fail("page did contain element with id \"" + id + "\"");
-        } catch (NoSuchElementException e) {
-            // pass
-        }
+        page_should_contain("not ", null, id);
     }
 
-    @Then("^page should contain element with id \"([^\"]*)\"$")
     public void page_should_contain_element_with_id(String id) throws Throwable {
-        try {
-            findElement(By.id(id));
-        } catch (NoSuchElementException e) {
-            fail("page did not contain element with id \"" + id + "\"");
-        }
+        page_should_contain(null, "id", id);
     }
 
-    @Then("^page should not contain element with id \"([^\"]*)\"$")
     public void page_should_not_contain_element_with_id(String id) throws Throwable {
-        try {
-            findElement(By.id(id));
-            fail("page did contain element with id \"" + id + "\"");
-        } catch (NoSuchElementException e) {
-            // pass
-        }
+        page_should_contain("not ", "id", id);
     }
 
-    @Then("^page should contain element with class name \"([^\"]*)\"$")
     public void page_should_contain_element_with_class_name(String className) throws Throwable {
-        try {
-            findElement(By.className(className));
-        } catch (NoSuchElementException e) {
-            fail("page did not contain element with class name \"" + className + "\"");
-        }
+        page_should_contain(null, "class name", className);
     }
 
-    @Then("^page should not contain element with class name \"([^\"]*)\"$")
     public void page_should_not_contain_element_with_class_name(String className) throws Throwable {
-        try {
-            findElement(By.className(className));
-            fail("page did contain element with class name \"" + className + "\"");
-        } catch (NoSuchElementException e) {
-            // pass
-        }
+        page_should_contain("not ", "class name", className);
     }
 
-    @Then("^page element \"([^\"]*)\" should be visible$")
     public void page_element_should_be_visible(String id) throws Throwable {
-        try {
-            waitUntil(visibilityOfElementLocated(By.id(id)));
-        } catch (TimeoutException e) {
-            fail("element with id \"" + id + "\" was not visible");
-        }
+        page_element_should(null, id, "be visible");
     }
 
-    @Then("^page element \"([^\"]*)\" should not be visible$")
     public void page_element_should_not_be_visible(String id) throws Throwable {
-        try {
-            waitUntil(invisibilityOfElementLocated(By.id(id)));
-        } catch (TimeoutException e) {
-            fail("element with id \"" + id + "\" was visible");
-        }
+        page_element_should(null, id, "not be visible");
     }
 
-    @Then("^page element \"([^\"]*)\" should contain text \"([^\"]*)\"$")
     public void page_element_should_contain_text(String id, String text) throws Throwable {
-        try {
-            waitUntil(textToBePresentInElementLocated(By.id(id), text));
-        } catch (TimeoutException e) {
-            try {
-                WebElement element = findElementById(id);
-                fail("element with id \"" + id + "\" did not contain text \"" + text + "\"; visible content of element was: " + element.getText());
-            } catch (NoSuchElementException e2) {
-                fail("element with id \"" + id + "\" did not contain text \"" + text + "\"; element not found");
-            }
-        }
+        page_element_should(null, id, "contain text \"" + text + "\"");
     }
 
-    @Then("^page element \"([^\"]*)\" should not contain text \"([^\"]*)\"$")
     public void page_element_should_not_contain_text(String id, String text) throws Throwable {
-        try {
-            waitUntil(not(textToBePresentInElementLocated(By.id(id), text)));
-        } catch (TimeoutException e) {
-            try {
-                WebElement element = findElementById(id);
-                fail("element with id \"" + id + "\" did contain text \"" + text + "\"; visible content of element was: " + element.getText());
-            } catch (NoSuchElementException e2) {
-                fail("element with id \"" + id + "\" did contain text \"" + text + "\"; element not found");
-            }
-        }
+        page_element_should(null, id, "not contain text \"" + text + "\"");
     }
 
-    @Then("^page element \"([^\"]*)\" should contain class name \"([^\"]*)\"$")
     public void page_element_should_contain_class_name(String id, String className) throws Throwable {
-        try {
-            WebElement element = findElementById(id);
-            if (!element.getAttribute("class").contains(className)) {
-                fail("element with id \"" + id + "\" did not contain element with class name \"" + className + "\"");
-            }
-        } catch (NoSuchElementException e) {
-            fail("element with id \"" + id + "\" not found");
-        }
+        page_element_should(null, id, "contain class name \"" + className + "\"");
     }
 
-    @Then("^page element \"([^\"]*)\" should contain element with class name \"([^\"]*)\"$")
     public void page_element_should_contain_element_with_class_name(String id, String className) throws Throwable {
-        try {
-            findElement(By.cssSelector("#" + id + " ." + className));
-        } catch (NoSuchElementException e) {
-            fail("element with id \"" + id + "\" not found");
-        }
+        page_element_should(null, id, "contain element with class name \"" + className + "\"");
     }
 
-    @Then("^page element \"([^\"]*)\" should not contain element with class name \"([^\"]*)\"$")
     public void page_element_should_not_contain_element_with_class_name(String id, String className) throws Throwable {
-        try {
-            findElement(By.cssSelector("#" + id + " ." + className));
-            fail("element with id \"" + id + "\" did contain element with class name \"" + className + "\"");
-        } catch (NoSuchElementException e) {
-            // pass
-        }
+        page_element_should(null, id, "not contain element with class name \"" + className + "\"");
     }
 
-    @Then("^page element \"([^\"]*)\" should contain visible element with class name \"([^\"]*)\"$")
     public void page_element_should_contain_visible_element_with_class_name(String id, String className) throws Throwable {
-        try {
-            waitUntil(visibilityOfElementLocated(By.cssSelector("#" + id + " ." + className)));
-        } catch (TimeoutException e) {
-            fail("element with id \"" + id + "\" did not contain visible element with class name \"" + className + "\"");
-        }
+        page_element_should(null, id, "contain visible element with class name \"" + className + "\"");
     }
 
-    @Then("^page element \"([^\"]*)\" should contain invisible element with class name \"([^\"]*)\"$")
     public void page_element_should_contain_invisible_element_with_class_name(String id, String className) throws Throwable {
-        try {
-            waitUntil(invisibilityOfElementLocated(By.cssSelector("#" + id + " ." + className)));
-        } catch (TimeoutException e) {
-            fail("element with id \"" + id + "\" did not contain invisible element with class name \"" + className + "\"");
-        }
+        page_element_should(null, id, "contain invisible element with class name \"" + className + "\"");
     }
 
-    @Then("^page element with id \"([^\"]*)\" should be visible$")
     public void page_element_with_id_should_be_visible(String id) throws Throwable {
-        try {
-            waitUntil(visibilityOfElementLocated(By.id(id)));
-        } catch (TimeoutException e) {
-            fail("element with id \"" + id + "\" was not visible");
-        }
+        page_element_should("id", id, "be visible");
     }
 
-    @Then("^page element with id \"([^\"]*)\" should not be visible$")
     public void page_element_with_id_should_not_be_visible(String id) throws Throwable {
-        try {
-            waitUntil(invisibilityOfElementLocated(By.id(id)));
-        } catch (TimeoutException e) {
-            fail("element with id \"" + id + "\" was visible");
-        }
+        page_element_should("id", id, "not be visible");
     }
 
-    @Then("^page element with id \"([^\"]*)\" should contain text \"([^\"]*)\"$")
     public void page_element_with_id_should_contain_text(String id, String text) throws Throwable {
-        try {
-            waitUntil(textToBePresentInElementLocated(By.id(id), text));
-        } catch (TimeoutException e) {
-            try {
-                WebElement element = findElementById(id);
-                fail("element with id \"" + id + "\" did not contain text \"" + text + "\"; visible content of element was: " + element.getText());
-            } catch (NoSuchElementException e2) {
-                fail("element with id \"" + id + "\" did not contain text \"" + text + "\"; element not found");
-            }
-        }
+        page_element_should("id", id, "contain text \"" + text + "\"");
     }
 
-    @Then("^page element with id \"([^\"]*)\" should not contain text \"([^\"]*)\"$")
     public void page_element_with_id_should_not_contain_text(String id, String text) throws Throwable {
-        try {
-            waitUntil(not(textToBePresentInElementLocated(By.id(id), text)));
-        } catch (TimeoutException e) {
-            try {
-                WebElement element = findElementById(id);
-                fail("element with id \"" + id + "\" did contain text \"" + text + "\"; visible content of element was: " + element.getText());
-            } catch (NoSuchElementException e2) {
-                fail("element with id \"" + id + "\" did contain text \"" + text + "\"; element not found");
-            }
-        }
+        page_element_should("id", id, "not contain text \"" + text + "\"");
     }
 
-    @Then("^page element with id \"([^\"]*)\" should contain element with class name \"([^\"]*)\"$")
     public void page_element_with_id_should_contain_element_with_class_name(String id, String className) throws Throwable {
-        try {
-            findElement(By.cssSelector("#" + id + " ." + className));
-        } catch (NoSuchElementException e) {
-            fail("element with id \"" + id + "\" did not contain element with class name \"" + className + "\"");
-        }
+        page_element_should("id", id, "contain element with class name \"" + className + "\"");
     }
 
-    @Then("^page element with id \"([^\"]*)\" should not contain element with class name \"([^\"]*)\"$")
     public void page_element_with_id_should_not_contain_element_with_class_name(String id, String className) throws Throwable {
-        try {
-            findElement(By.cssSelector("#" + id + " ." + className));
-            fail("element with id \"" + id + "\" did contain element with class name \"" + className + "\"");
-        } catch (NoSuchElementException e) {
-            // pass
-        }
+        page_element_should("id", id, "not contain element with class name \"" + className + "\"");
     }
 
-    @Then("^page element with id \"([^\"]*)\" should contain visible element with class name \"([^\"]*)\"$")
     public void page_elemen_with_id_should_contain_visible_element_with_class_name(String id, String className) throws Throwable {
-        try {
-            waitUntil(visibilityOfElementLocated(By.cssSelector("#" + id + " ." + className)));
-        } catch (TimeoutException e) {
-            fail("element with id \"" + id + "\" did not contain visible element with class name \"" + className + "\"");
-        }
+        page_element_should("id", id, "contain visible element with class name \"" + className + "\"");
     }
 
-    @Then("^page element with id \"([^\"]*)\" should contain invisible element with class name \"([^\"]*)\"$")
     public void page_element_with_id_should_contain_invisible_element_with_class_name(String id, String className) throws Throwable {
-        try {
-            waitUntil(invisibilityOfElementLocated(By.cssSelector("#" + id + " ." + className)));
-        } catch (TimeoutException e) {
-            fail("element with id \"" + id + "\" did not contain invisible element with class name \"" + className + "\"");
-        }
+        page_element_should("id", id, "contain invisible element with class name \"" + className + "\"");
     }
 
-    @Then("^page element with id \"([^\"]*)\" should have class \"([^\"]*)\"$")
     public void page_element_with_id_should_have_class(String id, String className) throws Throwable {
-        try {
-            findElement(By.cssSelector("#" + id + "." + className));
-        } catch (NoSuchElementException e) {
-            fail("element with id \"" + id + "\" did not have class name \"" + className + "\"");
-        }
+        page_element_should("id", id, "have class \"" + className + "\"");
     }
 
-    @Then("^page element with class name \"([^\"]*)\" should be visible$")
     public void page_element_with_class_name_should_be_visible(String className) throws Throwable {
-        try {
-            waitUntil(visibilityOfElementLocated(By.className(className)));
-        } catch (TimeoutException e) {
-            fail("element with class name \"" + className + "\" was not visible");
-        }
+        page_element_should("class name", className, "be visible");
     }
 
-    @Then("^page element with class name \"([^\"]*)\" should not be visible$")
     public void page_element_with_class_name_should_not_be_visible(String className) throws Throwable {
-        try {
-            waitUntil(invisibilityOfElementLocated(By.className(className)));
-        } catch (TimeoutException e) {
-            fail("element with class name \"" + className + "\" was visible");
-        }
+        page_element_should("class name", className, "not be visible");
     }
 
-    @Then("^page element with class name \"([^\"]*)\" should contain text \"([^\"]*)\"$")
     public void page_element_with_class_name_should_contain_text(String className, String text) throws Throwable {
-        try {
-            waitUntil(textToBePresentInElementLocated(By.className(className), text));
-        } catch (TimeoutException e) {
-            try {
-                WebElement element = findElement(By.className(className));
-                fail("element with class name \"" + className + "\" did not contain text \"" + text + "\"; visible content of element was: "
-                        + element.getText());
-            } catch (NoSuchElementException e2) {
-                fail("element with class name \"" + className + "\" did not contain text \"" + text + "\"; element not found");
-            }
-        }
+        page_element_should("class name", className, "contain text \"" + text + "\"");
     }
 
-    @Then("^page element with class name \"([^\"]*)\" should not contain text \"([^\"]*)\"$")
     public void page_element_with_class_name_should_not_contain_text(String className, String text) throws Throwable {
-        try {
-            waitUntil(not(textToBePresentInElementLocated(By.className(className), text)));
-        } catch (TimeoutException e) {
-            try {
-                WebElement element = findElement(By.className(className));
-                fail("element with class name \"" + className + "\" did contain text \"" + text + "\"; visible content of element was: " + element.getText());
-            } catch (NoSuchElementException e2) {
-                fail("element with class name \"" + className + "\" did contain text \"" + text + "\"; element not found");
-            }
-        }
+        page_element_should("class name", className, "not contain text \"" + text + "\"");
     }
 
-    @Then("^page element with class name \"([^\"]*)\" should contain element with class name \"([^\"]*)\"$")
     public void page_element_with_class_name_should_contain_element_with_class_name(String parent, String className) throws Throwable {
-        try {
-            findElement(By.cssSelector("." + parent + " ." + className));
-        } catch (NoSuchElementException e) {
-            fail("element with class name \"" + parent + "\" did not contain element with class name \"" + className + "\"");
-        }
+        page_element_should("class name", parent, "contain element with class name \"" + className + "\"");
     }
 
-    @Then("^page element with class name \"([^\"]*)\" should not contain element with class name \"([^\"]*)\"$")
     public void page_element_with_class_name_should_not_contain_element_with_class_name(String parent, String className) throws Throwable {
-        try {
-            findElement(By.cssSelector("." + parent + " ." + className));
-            fail("element with class name \"" + parent + "\" did contain element with class name \"" + className + "\"");
-        } catch (NoSuchElementException e) {
-            // pass
-        }
+        page_element_should("class name", parent, "not contain element with class name \"" + className + "\"");
     }
 
-    @Then("^page element with class name \"([^\"]*)\" should contain visible element with class name \"([^\"]*)\"$")
     public void page_elemen_with_class_name_should_contain_visible_element_with_class_name(String parent, String className) throws Throwable {
-        try {
-            waitUntil(visibilityOfElementLocated(By.cssSelector("." + parent + " ." + className)));
-        } catch (TimeoutException e) {
-            fail("element with class name \"" + parent + "\" did not contain visible element with class name \"" + className + "\"");
-        }
+        page_element_should("class name", parent, "contain visible element with class name \"" + className + "\"");
     }
 
-    @Then("^page element with class name \"([^\"]*)\" should contain invisible element with class name \"([^\"]*)\"$")
     public void page_element_with_class_name_should_contain_invisible_element_with_class_name(String parent, String className) throws Throwable {
-        try {
-            waitUntil(invisibilityOfElementLocated(By.cssSelector("." + parent + " ." + className)));
-        } catch (TimeoutException e) {
-            fail("element with class name \"" + parent + "\" did not contain invisible element with class name \"" + className + "\"");
-        }
+        page_element_should("class name", parent, "contain invisible element with class name \"" + className + "\"");
     }
 
     @Then("^field \"([^\"]*)\" should contain value \"([^\"]*)\"$")
     public void field_should_contain_value(String id, String value) throws Throwable {
         try {
-            waitUntil(textToBePresentInElementValue(By.id(id), value));
+            waitUntil(textToBePresentInElementValue(By.id(id), value), "field should contain value", By.id(id));
         } catch (TimeoutException e) {
             try {
                 WebElement element = findElementById(id);
@@ -915,7 +1337,7 @@ public class HtmlSteps {
     @Then("^field \"([^\"]*)\" should not contain value \"([^\"]*)\"$")
     public void field_should_not_contain_value(String id, String value) throws Throwable {
         try {
-            waitUntil(not(textToBePresentInElementValue(By.id(id), value)));
+            waitUntil(not(textToBePresentInElementValue(By.id(id), value)), "field should not contain value", By.id(id));
         } catch (TimeoutException e) {
             try {
                 WebElement element = findElementById(id);
@@ -931,36 +1353,70 @@ public class HtmlSteps {
         // assertThat(findVisibleElement(By.tagName("body")).getText().contains(text),
         // is(equalTo(true)));
         try {
-            WebElement element = webDriver.findElement(By.tagName("body"));
-            waitUntil(textToBePresentInElement(element, text));
+            WebElement element = driver().findElement(By.tagName("body"));
+            waitUntil(textToBePresentInElement(element, text), "body should contain text", text);
         } catch (TimeoutException e) {
             fail("body did not contain text \"" + text + "\"; text not found");
         }
     }
 
+    @Then("^page \"([^\"]*)\" should load within (\\d+) ms$")
+    public void page_should_load_within_ms(String path, long millis) throws Throwable {
+        PageTiming timing = getPageTiming(path);
+        if (timing.getLoad() > millis) {
+            fail("page \"" + path + "\" loaded in " + timing.getLoad() + " ms, expected at most " + millis + " ms; " + timing);
+        }
+    }
+
+    @Then("^page should make at most (\\d+) requests$")
+    public void page_should_make_at_most_requests(int requests) throws Throwable {
+        if (lastPageTiming == null) {
+            fail("no page timing available; visit a page first");
+        }
+        if (lastPageTiming.getRequests() < 0) {
+            fail("browser does not report the requests of a page");
+        }
+        if (lastPageTiming.getRequests() > requests) {
+            fail("page made " + lastPageTiming.getRequests() + " requests, expected at most " + requests + "; " + lastPageTiming);
+        }
+    }
+
+    @Then("^page \"([^\"]*)\" should not load slower than the baseline$")
+    public void page_should_not_load_slower_than_the_baseline(String path) throws Throwable {
+        PageTiming timing = getPageTiming(path);
+        if (PAGE_PERFORMANCE.isRegression(timing)) {
+            fail("page \"" + path + "\" loaded in " + timing.getLoad() + " ms, more than " + PAGE_PERFORMANCE.getThreshold() + "% slower than the baseline of "
+                    + PAGE_PERFORMANCE.getBaselineLoad(timing.getPath()) + " ms");
+        }
+    }
+
+    /**
+     * @return the timing of the last visit to the page in this scenario,
+     *         visiting the page if it was not visited yet
+     */
+    private PageTiming getPageTiming(String path) throws Throwable {
+        if (!pageTimings.containsKey(path)) {
+            I_visit_page(path);
+        }
+        PageTiming timing = pageTimings.get(path);
+        if (timing == null) {
+            fail("browser does not report navigation timing for page \"" + path + "\"");
+        }
+        return timing;
+    }
+
     /**
      * Undocumented feature for testing purpose.
      */
-    @Then("^page should contain element with xpath expression \"([^\"]*)\"$")
     public void page_should_contain_element_with_xpath_expression(String xpath) throws Throwable {
-        try {
-            findElement(By.xpath(xpath));
-        } catch (NoSuchElementException e) {
-            fail("page did not contain element with xpath expression \"" + xpath + "\"");
-        }
+        page_should_contain(null, "xpath expression", xpath);
     }
 
     /**
      * Undocumented feature for testing purpose.
      */
-    @Then("^page should not contain element with xpath expression \"([^\"]*)\"$")
     public void page_should_not_contain_element_with_xpath_expression(String xpath) throws Throwable {
-        try {
-            findElement(By.xpath(xpath));
-            fail("page did contain element with xpath expression \"" + xpath + "\"");
-        } catch (NoSuchElementException e) {
-            // pass
-        }
+        page_should_contain("not ", "xpath expression", xpath);
     }
 
     public String getUrl() {
@@ -992,7 +1448,7 @@ public class HtmlSteps {
      * @see org.openqa.selenium.WebDriver#findElement(org.openqa.selenium.By)
      */
     public WebElement findElement(By by) {
-        return webDriver.findElement(by);
+        return driver().findElement(by);
     }
 
     /**
@@ -1006,16 +1462,84 @@ public class HtmlSteps {
      *             If no matching elements are found
      * @see org.openqa.selenium.WebDriver#findElement(org.openqa.selenium.By)
      */
+    @SuppressWarnings("try")
     public WebElement findVisibleElement(By by) {
-        waitUntil(visibilityOfElementLocated(by));
-        return findElement(by);
+        try (TraceRecorder.Span span = trace("findVisibleElement", by)) {
+            return retryOnStaleElement(() -> {
+                waitUntil(visibilityOfElementLocated(by), "findVisibleElement", by);
+                return findElement(by);
+            });
+        }
     }
 
     public WebElement findVisibleAndClickableElement(By by) {
         // waitUntil(elementToBeClickable(by));
-        waitUntil(visibilityOfElementLocated(by));
-        // waitUntil(elementToBeClickable(by));
-        return findElement(by);
+        return findVisibleElement(by);
+    }
+
+    /**
+     * Finds the first visible element using the given method and clicks on
+     * it, finding it again when it was re-rendered in between.
+     *
+     * @param by
+     *            The locating mechanism
+     */
+    public void clickOnVisibleElement(By by) {
+        retryOnStaleElement(() -> click(findVisibleElement(by)));
+    }
+
+    public void clickOnVisibleAndClickableElement(By by) {
+        retryOnStaleElement(() -> click(findVisibleAndClickableElement(by)));
+    }
+
+    /**
+     * Runs an action that looks up elements and uses them, again when an
+     * element turned stale in between because the page re-rendered it. The
+     * action must look up the elements itself, so that they are found again
+     * on a retry. Retries are limited by test.stale.element.retries and
+     * counted in {@link GlueMetrics}.
+     *
+     * @param action
+     *            the lookup and use of the elements
+     * @return the result of the action
+     * @throws org.openqa.selenium.StaleElementReferenceException
+     *             If the element was still stale after the last retry
+     */
+    public <T> T retryOnStaleElement(Supplier<T> action) {
+        if (retryingOnStaleElement) {
+            // nested in an action that is retried as a whole already
+            return action.get();
+        }
+        retryingOnStaleElement = true;
+        try {
+            for (int attempt = 0;; attempt++) {
+                try {
+                    T result = action.get();
+                    if (attempt > 0) {
+                        GlueMetrics.increment("stale.element.recovered");
+                    }
+                    return result;
+                } catch (StaleElementReferenceException e) {
+                    if (attempt >= staleElementRetries) {
+                        GlueMetrics.increment("stale.element.unrecovered");
+                        throw e;
+                    }
+                    GlueMetrics.increment("stale.element.retries");
+                }
+            }
+        } finally {
+            retryingOnStaleElement = false;
+        }
+    }
+
+    /**
+     * @see #retryOnStaleElement(Supplier)
+     */
+    public void retryOnStaleElement(Runnable action) {
+        retryOnStaleElement(() -> {
+            action.run();
+            return null;
+        });
     }
 
     public WebElement findVisibleElementById(String id) {
@@ -1034,9 +1558,13 @@ public class HtmlSteps {
      * @see org.openqa.selenium.By.ById
      */
     public WebElement findElementById(String id) {
+        return retryOnStaleElement(() -> findAndScrollToElementById(id));
+    }
+
+    private WebElement findAndScrollToElementById(String id) {
         try {
             // waitUntil(presenceOfElementLocated(By.id(id)));
-            WebElement element = webDriver.findElement(By.id(id));
+            WebElement element = driver().findElement(By.id(id));
 
             // Scroll to the element, this due to some dirty radiobutton tricks.
             // And force it a bit more to to center
@@ -1061,12 +1589,16 @@ public class HtmlSteps {
      *
      * @param element
      */
+    @SuppressWarnings("try")
     public void scrollToElement(WebElement element) {
         int y_coor = 0;
 
-        try {
+        try (TraceRecorder.Span span = trace("scrollToElement", null)) {
             y_coor = element.getLocation().y - 100;
-            ((JavascriptExecutor) webDriver).executeScript("window.scrollTo(0," + y_coor + ")");
+            ((JavascriptExecutor) driver()).executeScript("window.scrollTo(0," + y_coor + ")");
+        } catch (StaleElementReferenceException e) {
+            // let the caller find the element again
+            throw e;
         } catch (Exception e) {
             throw new AssertionError("Could not scroll to element");
         }
@@ -1112,8 +1644,57 @@ public class HtmlSteps {
      *             If the timeout expires.
      */
     public <V> V waitUntil(Function<? super WebDriver, V> isTrue) {
-        WebDriverWait wait = new WebDriverWait(webDriver, timeout);
-        return wait.until(isTrue);
+        // the description of a condition may differ per run, its kind does not
+        return waitUntil(isTrue, TimingHistory.keyOf("waitUntil", ConditionKind.of(isTrue)), timeout * 1000L);
+    }
+
+    /**
+     * Waits for the condition like {@link #waitUntil(Function)}, with the
+     * duration recorded in the timing history under the step and what it
+     * waits for.
+     *
+     * @param step
+     *            the step or helper that waits, e.g. "page title should be"
+     * @param subject
+     *            what is waited for, e.g. the locator or path of the step
+     */
+    public <V> V waitUntil(Function<? super WebDriver, V> isTrue, String step, Object subject) {
+        return waitUntil(isTrue, TimingHistory.keyOf(step, subject), timeout * 1000L);
+    }
+
+    /**
+     * Waits for the condition like {@link #waitUntil(Function)}, with a
+     * timeout derived from the timing history for the given key when
+     * adaptive timeouts are enabled.
+     *
+     * @param key
+     *            the key the duration of this wait is recorded under
+     * @param defaultTimeout
+     *            the timeout in milliseconds when there is no (or not enough)
+     *            history for the key
+     */
+    @SuppressWarnings("try")
+    private <V> V waitUntil(Function<? super WebDriver, V> isTrue, String key, long defaultTimeout) {
+        ENVIRONMENT.check();
+        ConditionKind kind = ConditionKind.of(isTrue);
+        long waitTimeout = TIMING_HISTORY == null ? defaultTimeout : TIMING_HISTORY.getTimeout(key, defaultTimeout);
+        AdaptiveSleeper sleeper = WAIT_STATISTICS.newSleeper(kind);
+        FluentWait<WebDriver> wait = new FluentWait<WebDriver>(driver(), new SystemClock(), sleeper).withTimeout(waitTimeout, TimeUnit.MILLISECONDS)
+                .ignoring(NotFoundException.class);
+        long start = System.currentTimeMillis();
+        // the key names the helper that waits, e.g. waitForLoad
+        try (TraceRecorder.Span span = trace(key, null)) {
+            V value = wait.until(isTrue);
+            long duration = System.currentTimeMillis() - start;
+            WAIT_STATISTICS.recordSuccess(kind, duration, sleeper.getPolls());
+            if (TIMING_HISTORY != null) {
+                TIMING_HISTORY.record(key, duration);
+            }
+            return value;
+        } catch (TimeoutException e) {
+            WAIT_STATISTICS.recordTimeout(kind, sleeper.getPolls());
+            throw e;
+        }
     }
 
     /**
@@ -1126,8 +1707,17 @@ public class HtmlSteps {
      *             If the timeout expires.
      */
     public void waitUntil(Predicate<WebDriver> isTrue) {
-        WebDriverWait wait = new WebDriverWait(webDriver, timeout);
-        wait.until(isTrue);
+        waitUntil(new Function<WebDriver, Boolean>() {
+            @Override
+            public Boolean apply(WebDriver driver) {
+                return isTrue.apply(driver);
+            }
+
+            @Override
+            public String toString() {
+                return isTrue.toString();
+            }
+        });
     }
 
     /**
@@ -1154,17 +1744,16 @@ public class HtmlSteps {
         return sdf.format(cal.getTime());
     }
 
+    @SuppressWarnings("try")
     public void acceptCookies() {
         // accept cookies popup
         if (acceptCookies) {
-            try {
-                WebDriverWait wait = new WebDriverWait(webDriver, 2); // wait
-                // max 2
-                // seconds
-                wait.until(ExpectedConditions.elementToBeClickable(By.className("cookie-yes")));
+            try (TraceRecorder.Span span = trace("acceptCookies", null)) {
+                // wait max 2 seconds, or what the timing history says
+                waitUntil(ExpectedConditions.elementToBeClickable(By.className("cookie-yes")), "acceptCookies", ACCEPT_COOKIES_TIMEOUT);
                 turnOffImplicitWaits();
                 WebElement element = findElement(By.className("cookie-yes"));
-                moveTo(element).click().perform();
+                click(element);
                 Object lock = new Object();
                 synchronized (lock) {
                     try {
@@ -1185,12 +1774,27 @@ public class HtmlSteps {
         }
     }
 
+    /**
+     * @return a span of a helper in the trace, ended when it is closed
+     */
+    private TraceRecorder.Span trace(String helper, Object subject) {
+        if (!TraceRecorder.isEnabled() || subject == null) {
+            return TraceRecorder.span("helper", helper, traceSession);
+        }
+        return TraceRecorder.span("helper", helper + " " + subject, traceSession);
+    }
+
+    private boolean isJavascriptEnabled() {
+        WebDriver driver = driver().getWrappedDriver();
+        return !(driver instanceof HtmlUnitDriver) || ((HtmlUnitDriver) driver).isJavascriptEnabled();
+    }
+
     private void turnOnImplicitWaits() {
-        webDriver.manage().timeouts().implicitlyWait(timeout, TimeUnit.SECONDS);
+        driver().manage().timeouts().implicitlyWait(timeout, TimeUnit.SECONDS);
     }
 
     private void turnOffImplicitWaits() {
-        webDriver.manage().timeouts().implicitlyWait(0, TimeUnit.SECONDS);
+        driver().manage().timeouts().implicitlyWait(0, TimeUnit.SECONDS);
     }
 
     /**
@@ -1207,8 +1811,21 @@ public class HtmlSteps {
         }
     }
     
+    /**
+     * Clicks an element with the mouse. Every click of the glue goes through
+     * here: a click may open another page, which ends the JavaScript error
+     * buffer of the current page, so the buffer is drained before the click
+     * and installed in the page the browser is on after it. The mouse of the
+     * event firing driver does not tell its listeners about clicks.
+     */
+    public void click(WebElement element) {
+        drainJavaScriptErrorBuffer();
+        moveTo(element).click().perform();
+        installJavaScriptErrorBuffer();
+    }
+
     public Actions moveTo(WebElement element) {
-        Actions actions = new Actions(webDriver);
+        Actions actions = new Actions(driver());
         return actions.moveToElement(element);
     }
     
@@ -0,0 +1,183 @@
+/**
+ * Copyright 2015 Q24
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.kahu.hawaii.cucumber.glue.html;
+
+import java.lang.reflect.Field;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+
+import org.openqa.selenium.WebDriver;
+import org.openqa.selenium.WebDriverException;
+import org.openqa.selenium.htmlunit.HtmlUnitDriver;
+
+import com.gargoylesoftware.htmlunit.BrowserVersion;
+import com.gargoylesoftware.htmlunit.StorageHolder;
+import com.gargoylesoftware.htmlunit.TopLevelWindow;
+import com.gargoylesoftware.htmlunit.WebClient;
+import com.gargoylesoftware.htmlunit.WebWindow;
+
+/**
+ * Pool of in-JVM HtmlUnit drivers for scenarios that do not need a real
+ * browser. Quitting a pooled driver does not end it: it is cleared (cookies,
+ * local and session storage, windows, page) and goes back to the pool, so
+ * the next scenario does not pay for starting a driver. At most test.htmlunit.pool.size (default 4)
+ * idle drivers are kept; JavaScript is off unless test.htmlunit.javascript
+ * is true.
+ */
+public final class HtmlUnitPool {
+
+    private static final int MAX_IDLE = Integer.getInteger("test.htmlunit.pool.size", 4);
+    private static final boolean JAVASCRIPT = Boolean.getBoolean("test.htmlunit.javascript");
+    private static final Deque<PooledDriver> IDLE = new ArrayDeque<>();
+    private static boolean shutdownHookAdded;
+
+    private HtmlUnitPool() {
+    }
+
+    /**
+     * @return an idle driver from the pool, or a new one if the pool is
+     *         empty
+     */
+    public static synchronized HtmlUnitDriver acquire() {
+        if (!shutdownHookAdded) {
+            Runtime.getRuntime().addShutdownHook(new Thread(HtmlUnitPool::disposeAll, "htmlunit-pool"));
+            shutdownHookAdded = true;
+        }
+        PooledDriver driver = IDLE.pollFirst();
+        if (driver != null) {
+            GlueMetrics.increment("htmlunit.pool.reused");
+            return driver;
+        }
+        GlueMetrics.increment("htmlunit.pool.created");
+        return new PooledDriver();
+    }
+
+    /**
+     * @return true if the driver is from the pool, and so outlives its
+     *         scenario
+     */
+    public static boolean isPooled(WebDriver driver) {
+        return driver instanceof PooledDriver;
+    }
+
+    /**
+     * Makes a pooled driver end when it is quit, instead of going back to
+     * the pool, e.g. when it uses too much memory.
+     *
+     * @return false if the driver is not from the pool
+     */
+    public static boolean retire(WebDriver driver) {
+        if (driver instanceof PooledDriver) {
+            ((PooledDriver) driver).retired = true;
+            return true;
+        }
+        return false;
+    }
+
+    private static void release(PooledDriver driver) {
+        boolean keep;
+        synchronized (HtmlUnitPool.class) {
+            keep = IDLE.size() < MAX_IDLE;
+            if (keep) {
+                IDLE.addFirst(driver);
+            }
+        }
+        if (!keep) {
+            driver.dispose();
+        }
+    }
+
+    private static void disposeAll() {
+        List<PooledDriver> drivers;
+        synchronized (HtmlUnitPool.class) {
+            drivers = new ArrayList<>(IDLE);
+            IDLE.clear();
+        }
+        for (PooledDriver driver : drivers) {
+            driver.dispose();
+        }
+    }
+
+    /**
+     * An HtmlUnit driver that goes back to the pool when it is quit.
+     */
+    private static class PooledDriver extends HtmlUnitDriver {
+
+        private volatile boolean retired;
+
+        PooledDriver() {
+            super(BrowserVersion.CHROME, JAVASCRIPT);
+        }
+
+        @Override
+        public void quit() {
+            if (retired) {
+                dispose();
+                return;
+            }
+            try {
+                reset();
+            } catch (RuntimeException e) {
+                // not fit for the next scenario
+                dispose();
+                return;
+            }
+            release(this);
+        }
+
+        private void reset() {
+            WebClient client = getWebClient();
+            client.getCookieManager().clearCookies();
+            clearStorage(client.getStorageHolder());
+            List<WebWindow> windows = new ArrayList<>(client.getTopLevelWindows());
+            for (WebWindow window : windows.subList(1, windows.size())) {
+                ((TopLevelWindow) window).close();
+            }
+            get("about:blank");
+        }
+
+        /**
+         * Clears the storage of all origins, e.g. a login token restored in
+         * a scenario. The holder only hands out the storage of one page.
+         */
+        private static void clearStorage(StorageHolder holder) {
+            try {
+                for (Field field : StorageHolder.class.getDeclaredFields()) {
+                    if (Map.class.isAssignableFrom(field.getType())) {
+                        field.setAccessible(true);
+                        Map<?, ?> storage = (Map<?, ?>) field.get(holder);
+                        synchronized (storage) {
+                            storage.clear();
+                        }
+                    }
+                }
+            } catch (ReflectiveOperationException e) {
+                throw new IllegalStateException("Could not clear the storage of the driver", e);
+            }
+        }
+
+        void dispose() {
+            try {
+                super.quit();
+            } catch (WebDriverException e) {
+                // already gone
+            }
+        }
+    }
+}
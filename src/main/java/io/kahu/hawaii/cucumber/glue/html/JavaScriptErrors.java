@@ -0,0 +1,131 @@
+/**
+ * Copyright 2015 Q24
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.kahu.hawaii.cucumber.glue.html;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.logging.Level;
+
+import org.openqa.selenium.JavascriptExecutor;
+import org.openqa.selenium.WebDriver;
+import org.openqa.selenium.WebDriverException;
+import org.openqa.selenium.logging.LogEntry;
+import org.openqa.selenium.logging.LogType;
+import org.openqa.selenium.logging.LoggingPreferences;
+
+/**
+ * The JavaScript errors of the pages of a browser. Browsers that keep a
+ * browser log (e.g. Chrome) are read from it, which includes the errors
+ * while a page loads and of pages opened by a click. For other browsers a
+ * buffer in the page collects uncaught errors, unhandled promise rejections
+ * and console errors, so they can be read in one call instead of after every
+ * step. The buffer lives in the page, so it has to be installed after every
+ * navigation and drained before the next one; errors thrown before it is
+ * installed are missed.
+ */
+public final class JavaScriptErrors {
+
+    private static final String INSTALL_SCRIPT = "if (window.__hawaiiErrors) { return; } var errors = window.__hawaiiErrors = [];"
+            + " var push = function (message) { if (errors.length < 100) { errors.push(String(message)); } };"
+            + " var previous = window.onerror;"
+            + " window.onerror = function (message, source, line) { push(message + ' (' + source + ':' + line + ')');"
+            + "   return previous ? previous.apply(this, arguments) : false; };"
+            + " if (window.addEventListener) { window.addEventListener('unhandledrejection', function (event) {"
+            + "   push('unhandled rejection: ' + (event.reason && event.reason.stack ? event.reason.stack : event.reason)); }); }"
+            + " if (window.console && console.error) { var error = console.error;"
+            + "   console.error = function () { push('console.error: ' + Array.prototype.join.call(arguments, ' ')); return error.apply(console, arguments); }; }";
+
+    private static final String DRAIN_SCRIPT = "var errors = window.__hawaiiErrors; if (!errors) { return []; }"
+            + " return errors.splice(0, errors.length);";
+
+    private JavaScriptErrors() {
+    }
+
+    /**
+     * @return the logging preferences that make a remote browser keep the
+     *         errors in its browser log
+     */
+    public static LoggingPreferences loggingPreferences() {
+        LoggingPreferences preferences = new LoggingPreferences();
+        preferences.enable(LogType.BROWSER, Level.SEVERE);
+        return preferences;
+    }
+
+    /**
+     * @return true if the driver can read the browser log, then
+     *         {@link #drainBrowserLog(WebDriver)} takes the place of the
+     *         buffer
+     */
+    public static boolean hasBrowserLog(WebDriver driver) {
+        try {
+            return driver.manage().logs().getAvailableLogTypes().contains(LogType.BROWSER);
+        } catch (WebDriverException | UnsupportedOperationException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Takes the errors out of the browser log; reading the log clears it.
+     *
+     * @return the errors, empty if the log can not be read
+     */
+    public static List<String> drainBrowserLog(WebDriver driver) {
+        List<String> errors = new ArrayList<>();
+        try {
+            for (LogEntry entry : driver.manage().logs().get(LogType.BROWSER)) {
+                if (entry.getLevel().intValue() >= Level.SEVERE.intValue()) {
+                    errors.add(entry.getMessage());
+                }
+            }
+        } catch (WebDriverException | UnsupportedOperationException e) {
+            // browser gone, nothing to collect
+        }
+        return errors;
+    }
+
+    /**
+     * Installs the buffer in the current page, if it is not there yet.
+     */
+    public static void install(WebDriver driver) {
+        try {
+            ((JavascriptExecutor) driver).executeScript(INSTALL_SCRIPT);
+        } catch (WebDriverException | UnsupportedOperationException e) {
+            // scripts not supported, nothing to collect
+        }
+    }
+
+    /**
+     * Takes the collected errors out of the buffer of the current page.
+     *
+     * @return the errors, empty if there is no buffer
+     */
+    public static List<String> drain(WebDriver driver) {
+        try {
+            Object result = ((JavascriptExecutor) driver).executeScript(DRAIN_SCRIPT);
+            if (result instanceof List) {
+                List<String> errors = new ArrayList<>();
+                for (Object error : (List<?>) result) {
+                    errors.add(String.valueOf(error));
+                }
+                return errors;
+            }
+        } catch (WebDriverException | UnsupportedOperationException e) {
+            // scripts not supported or browser gone, nothing to collect
+        }
+        return Collections.emptyList();
+    }
+}
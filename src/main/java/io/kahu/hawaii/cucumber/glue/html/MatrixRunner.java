@@ -0,0 +1,215 @@
+/**
+ * Copyright 2015 Q24
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.kahu.hawaii.cucumber.glue.html;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.commons.lang.StringUtils;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import cucumber.api.cli.Main;
+import cucumber.runtime.RuntimeOptions;
+import cucumber.runtime.model.CucumberFeature;
+
+/**
+ * Runs every feature (or every scenario) on a set of browser profiles at
+ * once. Profiles are listed in test.matrix, e.g.
+ * <code>-Dtest.matrix=chrome,firefox,remote:iexplore,remote:safari</code>,
+ * where the "remote:" prefix runs the browser on test.selenium.hub. Takes the
+ * same arguments as the cucumber command line.
+ * <p>
+ * Each run of a feature on a profile gets a worker thread that drives a JVM
+ * of its own, as the glue and the cucumber object factories keep state per
+ * JVM. test.matrix.threads.&lt;browser&gt; (default test.matrix.threads, 1)
+ * caps the number of concurrent sessions per browser, to stay within the
+ * capacity of the grid; local and remote profiles of a browser share it. test.matrix.granularity is "feature" (default) or
+ * "scenario".
+ * <p>
+ * The cucumber json reports of all runs are merged into
+ * test.matrix.dir/cucumber.json (default target/matrix), with the profile in
+ * front of every feature name; the output of each run is kept next to it.
+ */
+public class MatrixRunner {
+
+    private static final List<String> PLUGIN_OPTIONS = Arrays.asList("--plugin", "-p", "--format", "-f");
+
+    public static void main(String[] args) throws Exception {
+        String matrix = System.getProperty("test.matrix");
+        if (StringUtils.isBlank(matrix)) {
+            System.err.println("Specify the browser profiles to run as -Dtest.matrix=<profile>,..., e.g. -Dtest.matrix=chrome,firefox,remote:iexplore");
+            System.exit(1);
+        }
+        File dir = new File(System.getProperty("test.matrix.dir", "target/matrix"));
+        boolean perScenario = "scenario".equalsIgnoreCase(System.getProperty("test.matrix.granularity", "feature"));
+
+        List<String> arguments = withoutFilePlugins(args);
+        List<String> featureArguments = new ArrayList<>();
+        for (Map.Entry<String, List<CucumberFeature>> entry : ShardPlanner.loadFeatures(arguments).entrySet()) {
+            for (CucumberFeature feature : entry.getValue()) {
+                String path = ShardPlanner.argumentPath(entry.getKey(), feature.getPath());
+                if (perScenario) {
+                    feature.getFeatureElements().forEach(element -> featureArguments.add(path + ":" + element.getGherkinModel().getLine()));
+                } else {
+                    featureArguments.add(path);
+                }
+            }
+        }
+        arguments.removeAll(new RuntimeOptions(new ArrayList<>(arguments)).getFeaturePaths());
+
+        Map<Run, Future<Integer>> runs = new LinkedHashMap<>();
+        // profiles of the same browser, e.g. chrome and remote:chrome, share its cap
+        Map<String, ExecutorService> executors = new HashMap<>();
+        for (String profile : matrix.split(",")) {
+            String name = profile.trim();
+            String browser = StringUtils.removeStart(name, "remote:");
+            ExecutorService executor = executors.computeIfAbsent(browser,
+                    key -> Executors.newFixedThreadPool(Integer.getInteger("test.matrix.threads." + key, Integer.getInteger("test.matrix.threads", 1))));
+            File profileDir = new File(dir, name.replace(':', '-'));
+            profileDir.mkdirs();
+            for (int i = 0; i < featureArguments.size(); i++) {
+                Run run = new Run(name, browser, name.startsWith("remote:"), featureArguments.get(i), new File(profileDir, "run-" + (i + 1)));
+                runs.put(run, executor.submit(() -> run.execute(arguments)));
+            }
+        }
+
+        int exitStatus = 0;
+        StringBuilder summary = new StringBuilder();
+        JsonArray merged = new JsonArray();
+        for (Map.Entry<Run, Future<Integer>> entry : runs.entrySet()) {
+            Run run = entry.getKey();
+            int status = entry.getValue().get();
+            exitStatus = Math.max(exitStatus, status);
+            summary.append(String.format("[%s] %s %s%n", run.profile, status == 0 ? "PASSED" : "FAILED", run.feature));
+            merged.addAll(run.taggedReport());
+        }
+        executors.values().forEach(ExecutorService::shutdown);
+
+        Gson gson = new GsonBuilder().setPrettyPrinting().create();
+        Files.write(new File(dir, "cucumber.json").toPath(), gson.toJson(merged).getBytes(StandardCharsets.UTF_8));
+        Files.write(new File(dir, "summary.txt").toPath(), summary.toString().getBytes(StandardCharsets.UTF_8));
+        System.out.print(summary);
+        System.exit(exitStatus);
+    }
+
+    /**
+     * Drops the plugins that write to a file; concurrent runs would
+     * overwrite each other's output. Plugins writing to the console are
+     * kept.
+     */
+    private static List<String> withoutFilePlugins(String[] args) {
+        List<String> arguments = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            if (PLUGIN_OPTIONS.contains(args[i]) && i + 1 < args.length && args[i + 1].contains(":")) {
+                System.err.println("Ignoring plugin " + args[i + 1] + " in matrix mode");
+                i++;
+            } else {
+                arguments.add(args[i]);
+            }
+        }
+        return arguments;
+    }
+
+    /**
+     * One feature (or scenario) on one browser profile.
+     */
+    private static class Run {
+        private final String profile;
+        private final String browser;
+        private final boolean remote;
+        private final String feature;
+        private final File basename;
+
+        private Run(String profile, String browser, boolean remote, String feature, File basename) {
+            this.profile = profile;
+            this.browser = browser;
+            this.remote = remote;
+            this.feature = feature;
+            this.basename = basename;
+        }
+
+        private int execute(List<String> cucumberArguments) throws IOException, InterruptedException {
+            List<String> command = new ArrayList<>();
+            command.add(new File(new File(System.getProperty("java.home"), "bin"), "java").getPath());
+            command.add("-cp");
+            command.add(System.getProperty("java.class.path"));
+            for (String key : System.getProperties().stringPropertyNames()) {
+                if ((key.startsWith("test.") && !key.startsWith("test.matrix")) || key.startsWith("cucumber.") || key.startsWith("webdriver.")) {
+                    command.add("-D" + key + "=" + System.getProperty(key));
+                }
+            }
+            command.add("-Dtest.browser=" + browser);
+            command.add("-Dtest.remote=" + remote);
+            command.add("-Dtest.matrix.profile=" + profile);
+            command.add(Main.class.getName());
+            command.addAll(cucumberArguments);
+            command.add("--plugin");
+            command.add("json:" + basename.getPath() + ".json");
+            command.add(feature);
+
+            ProcessBuilder processBuilder = new ProcessBuilder(command).redirectErrorStream(true).redirectOutput(new File(basename.getPath() + ".log"));
+            Process process = processBuilder.start();
+            return process.waitFor();
+        }
+
+        /**
+         * @return the features of the json report of this run, with the
+         *         profile in front of their names and ids
+         */
+        private JsonArray taggedReport() throws IOException {
+            JsonArray features = new JsonArray();
+            File report = new File(basename.getPath() + ".json");
+            if (!report.isFile()) {
+                return features;
+            }
+            try (Reader reader = Files.newBufferedReader(report.toPath(), StandardCharsets.UTF_8)) {
+                JsonElement json = new JsonParser().parse(reader);
+                if (!json.isJsonArray()) {
+                    return features;
+                }
+                for (JsonElement element : json.getAsJsonArray()) {
+                    JsonObject feature = element.getAsJsonObject();
+                    if (feature.has("name")) {
+                        feature.addProperty("name", "[" + profile + "] " + feature.get("name").getAsString());
+                    }
+                    if (feature.has("id")) {
+                        feature.addProperty("id", profile + ";" + feature.get("id").getAsString());
+                    }
+                    features.add(feature);
+                }
+            }
+            return features;
+        }
+    }
+}
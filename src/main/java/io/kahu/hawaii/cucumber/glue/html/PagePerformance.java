@@ -0,0 +1,128 @@
+/**
+ * Copyright 2015 Q24
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.kahu.hawaii.cucumber.glue.html;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Page timings of a run, appended per visit to a local results file as "path,
+ * ttfb, domContentLoaded, load, requests" per line, and compared with a
+ * baseline: a results file of an earlier run. Pages are keyed on their path
+ * relative to the url of the application, so a baseline recorded against
+ * another host, or a stub server on another port, still applies.
+ */
+public class PagePerformance {
+
+    private final File results;
+    private final Map<String, Long> baseline;
+    private final int threshold;
+
+    /**
+     * @param results
+     *            the results file, null to not store results
+     * @param baseline
+     *            the results file of an earlier run, null for no comparison
+     * @param threshold
+     *            the percentage the load time may exceed the baseline
+     *            before it counts as a regression
+     */
+    public PagePerformance(File results, File baseline, int threshold) {
+        this.results = results;
+        this.baseline = baseline == null ? Collections.<String, Long> emptyMap() : loadMedians(baseline);
+        this.threshold = threshold;
+    }
+
+    public synchronized void record(PageTiming timing) {
+        if (results == null) {
+            return;
+        }
+        File parent = results.getAbsoluteFile().getParentFile();
+        if (parent != null) {
+            parent.mkdirs();
+        }
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(results, true), StandardCharsets.UTF_8)) {
+            writer.write(timing.getPath() + "\t" + timing.getTimeToFirstByte() + "\t" + timing.getDomContentLoaded() + "\t" + timing.getLoad() + "\t"
+                    + timing.getRequests() + System.lineSeparator());
+        } catch (IOException e) {
+            System.err.println("Could not write page performance results " + results + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * @return the median load time of the page in the baseline, or -1 if the
+     *         baseline does not contain the page
+     */
+    public long getBaselineLoad(String path) {
+        Long load = baseline.get(path);
+        return load == null ? -1 : load;
+    }
+
+    /**
+     * @return true if the load time of the timing exceeds the baseline by
+     *         more than the threshold
+     */
+    public boolean isRegression(PageTiming timing) {
+        long baselineLoad = getBaselineLoad(timing.getPath());
+        return baselineLoad >= 0 && timing.getLoad() > baselineLoad * (100 + threshold) / 100;
+    }
+
+    public int getThreshold() {
+        return threshold;
+    }
+
+    private static Map<String, Long> loadMedians(File file) {
+        Map<String, List<Long>> loads = new HashMap<>();
+        if (file.isFile()) {
+            try (BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    String[] fields = line.split("\t");
+                    if (fields.length < 5) {
+                        continue;
+                    }
+                    try {
+                        loads.computeIfAbsent(fields[0], path -> new ArrayList<>()).add(Long.parseLong(fields[3]));
+                    } catch (NumberFormatException e) {
+                        // ignore, corrupt line
+                    }
+                }
+            } catch (IOException e) {
+                System.err.println("Could not read page performance baseline " + file + ": " + e.getMessage());
+            }
+        } else {
+            System.err.println("Page performance baseline " + file + " not found");
+        }
+        Map<String, Long> medians = new HashMap<>();
+        for (Map.Entry<String, List<Long>> entry : loads.entrySet()) {
+            List<Long> values = entry.getValue();
+            Collections.sort(values);
+            medians.put(entry.getKey(), values.get(values.size() / 2));
+        }
+        return medians;
+    }
+}
@@ -0,0 +1,119 @@
+/**
+ * Copyright 2015 Q24
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.kahu.hawaii.cucumber.glue.html;
+
+import java.util.List;
+
+import org.openqa.selenium.JavascriptExecutor;
+import org.openqa.selenium.WebDriver;
+import org.openqa.selenium.WebDriverException;
+
+/**
+ * The navigation timing of one page visit, as reported by
+ * <code>window.performance</code> in the browser.
+ */
+public class PageTiming {
+
+    private static final String SCRIPT = "var p = window.performance; if (!p || !p.timing) { return null; } var t = p.timing;"
+            + " var r = p.getEntriesByType ? p.getEntriesByType('resource').length : -1;"
+            + " return [t.navigationStart, t.responseStart, t.domContentLoadedEventEnd, t.loadEventEnd || t.domComplete, r];";
+
+    private final String path;
+    private final long timeToFirstByte;
+    private final long domContentLoaded;
+    private final long load;
+    private final int requests;
+
+    /**
+     * @param path
+     *            the page, relative to the url of the application, so that
+     *            timings of runs against other hosts or ports compare
+     */
+    public PageTiming(String path, long timeToFirstByte, long domContentLoaded, long load, int requests) {
+        this.path = path;
+        this.timeToFirstByte = timeToFirstByte;
+        this.domContentLoaded = domContentLoaded;
+        this.load = load;
+        this.requests = requests;
+    }
+
+    /**
+     * Reads the timing of the current page in one script call.
+     *
+     * @return the timing, or null if the browser does not support navigation
+     *         timing or scripts
+     */
+    public static PageTiming collect(WebDriver driver, String path) {
+        try {
+            Object result = ((JavascriptExecutor) driver).executeScript(SCRIPT);
+            if (!(result instanceof List) || ((List<?>) result).size() < 5) {
+                return null;
+            }
+            List<?> values = (List<?>) result;
+            long navigationStart = toLong(values.get(0));
+            long resources = toLong(values.get(4));
+            return new PageTiming(path, toLong(values.get(1)) - navigationStart, toLong(values.get(2)) - navigationStart,
+                    toLong(values.get(3)) - navigationStart, resources < 0 ? -1 : (int) resources + 1);
+        } catch (WebDriverException | UnsupportedOperationException e) {
+            return null;
+        }
+    }
+
+    private static long toLong(Object value) {
+        return value instanceof Number ? ((Number) value).longValue() : 0;
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    /**
+     * @return milliseconds from the start of the navigation to the first byte
+     *         of the response
+     */
+    public long getTimeToFirstByte() {
+        return timeToFirstByte;
+    }
+
+    /**
+     * @return milliseconds from the start of the navigation to the end of the
+     *         DOMContentLoaded event
+     */
+    public long getDomContentLoaded() {
+        return domContentLoaded;
+    }
+
+    /**
+     * @return milliseconds from the start of the navigation to the end of the
+     *         load event
+     */
+    public long getLoad() {
+        return load;
+    }
+
+    /**
+     * @return the number of requests made for the page (the document and its
+     *         resources), or -1 if the browser does not report resources
+     */
+    public int getRequests() {
+        return requests;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s: ttfb=%dms, domContentLoaded=%dms, load=%dms, requests=%d", path, timeToFirstByte, domContentLoaded, load, requests);
+    }
+}
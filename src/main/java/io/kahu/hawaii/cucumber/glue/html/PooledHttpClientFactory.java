@@ -0,0 +1,117 @@
+/**
+ * Copyright 2015 Q24
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.kahu.hawaii.cucumber.glue.html;
+
+import java.io.IOException;
+import java.net.URL;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.config.SocketConfig;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.pool.PoolStats;
+import org.openqa.selenium.remote.http.HttpClient;
+import org.openqa.selenium.remote.http.HttpRequest;
+import org.openqa.selenium.remote.http.HttpResponse;
+import org.openqa.selenium.remote.internal.ApacheHttpClient;
+
+/**
+ * Transport for the commands of remote drivers that keeps connections to the
+ * hub open between commands and shares them between all sessions of the
+ * JVM, so a command does not pay for a new connection (through the load
+ * balancer) when the previous one is still usable. The pool is bounded;
+ * idle connections are closed after the keep-alive time, and checked before
+ * use when they were idle for a while, instead of before every command.
+ * <p>
+ * The time every request takes, including waiting for a pooled connection,
+ * is counted in the remote.http.* glue metrics.
+ */
+public class PooledHttpClientFactory implements HttpClient.Factory {
+
+    private final PoolingHttpClientConnectionManager connections;
+    private final CloseableHttpClient client;
+
+    /**
+     * @param poolSize
+     *            the maximum number of connections to one hub
+     * @param connectTimeout
+     *            the milliseconds to wait for a connection
+     * @param socketTimeout
+     *            the milliseconds to wait for a response
+     * @param keepAlive
+     *            the milliseconds an idle connection is kept open
+     * @param compression
+     *            true to ask the hub for compressed responses
+     */
+    public PooledHttpClientFactory(int poolSize, int connectTimeout, int socketTimeout, long keepAlive, boolean compression) {
+        connections = new PoolingHttpClientConnectionManager(keepAlive, TimeUnit.MILLISECONDS);
+        connections.setMaxTotal(poolSize);
+        connections.setDefaultMaxPerRoute(poolSize);
+        // instead of a stale connection check before every command
+        connections.setValidateAfterInactivity(1000);
+        HttpClientBuilder builder = HttpClientBuilder.create().setConnectionManager(connections)
+                .setDefaultSocketConfig(SocketConfig.custom().setSoTimeout(socketTimeout).setTcpNoDelay(true).build())
+                .setDefaultRequestConfig(RequestConfig.custom().setConnectTimeout(connectTimeout).setConnectionRequestTimeout(connectTimeout)
+                        .setSocketTimeout(socketTimeout).build())
+                .setKeepAliveStrategy((response, context) -> keepAlive).evictIdleConnections(keepAlive, TimeUnit.MILLISECONDS);
+        if (!compression) {
+            builder.disableContentCompression();
+        }
+        client = builder.build();
+    }
+
+    @Override
+    public HttpClient createClient(URL url) {
+        return new TimedClient(new ApacheHttpClient(client, url));
+    }
+
+    /**
+     * @return the connections leased, idle and waited for, for a report
+     */
+    public PoolStats getStats() {
+        return connections.getTotalStats();
+    }
+
+    /**
+     * Client of one session. Closing it leaves the shared connections open.
+     */
+    private static class TimedClient implements HttpClient {
+
+        private final HttpClient delegate;
+
+        TimedClient(HttpClient delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public HttpResponse execute(HttpRequest request, boolean followRedirects) throws IOException {
+            long start = System.nanoTime();
+            try {
+                return delegate.execute(request, followRedirects);
+            } finally {
+                GlueMetrics.increment("remote.http.requests");
+                GlueMetrics.add("remote.http.micros", (System.nanoTime() - start) / 1000);
+            }
+        }
+
+        @Override
+        public void close() {
+            // the connections are shared with the other sessions
+        }
+    }
+}
@@ -0,0 +1,169 @@
+/**
+ * Copyright 2015 Q24
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.kahu.hawaii.cucumber.glue.html;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The processes this JVM started, such as driver processes and their
+ * browsers, read from /proc. Where there is no /proc, there are none.
+ */
+final class ProcessTree {
+
+    private ProcessTree() {
+    }
+
+    /**
+     * @return the ids of the processes this JVM started and their children
+     */
+    static Set<String> descendants() {
+        String self = ManagementFactory.getRuntimeMXBean().getName();
+        if (self.indexOf('@') < 0) {
+            return Collections.emptySet();
+        }
+        return subtree(children(), self.substring(0, self.indexOf('@')));
+    }
+
+    /**
+     * @return the process this JVM started that listens on the port of a
+     *         local address, such as a driver service, and its children;
+     *         none if the address is not local
+     */
+    static Set<String> serving(URL address) {
+        Set<String> inodes = new HashSet<>();
+        try {
+            if (address == null || !InetAddress.getByName(address.getHost()).isLoopbackAddress()) {
+                return Collections.emptySet();
+            }
+            int port = address.getPort() < 0 ? address.getDefaultPort() : address.getPort();
+            for (String table : new String[] { "/proc/net/tcp", "/proc/net/tcp6" }) {
+                File file = new File(table);
+                if (file.exists()) {
+                    for (String line : Files.readAllLines(file.toPath(), StandardCharsets.UTF_8)) {
+                        // sl local_address rem_address st ... inode; 0A is LISTEN
+                        String[] fields = line.trim().split("\\s+");
+                        if (fields.length > 9 && "0A".equals(fields[3]) && fields[1].endsWith(String.format(":%04X", port))) {
+                            inodes.add("socket:[" + fields[9] + "]");
+                        }
+                    }
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            return Collections.emptySet();
+        }
+        if (inodes.isEmpty()) {
+            return Collections.emptySet();
+        }
+        for (String pid : descendants()) {
+            File[] descriptors = new File("/proc/" + pid + "/fd").listFiles();
+            for (File descriptor : descriptors == null ? new File[0] : descriptors) {
+                try {
+                    if (inodes.contains(Files.readSymbolicLink(descriptor.toPath()).toString())) {
+                        Set<String> serving = new LinkedHashSet<>();
+                        serving.add(pid);
+                        serving.addAll(subtree(children(), pid));
+                        return serving;
+                    }
+                } catch (IOException | RuntimeException e) {
+                    // closed in the meantime
+                }
+            }
+        }
+        return Collections.emptySet();
+    }
+
+    /**
+     * @return the ids of the children of each process
+     */
+    private static Map<String, List<String>> children() {
+        File[] processes = new File("/proc").listFiles((dir, name) -> name.matches("\\d+"));
+        Map<String, List<String>> children = new HashMap<>();
+        for (File process : processes == null ? new File[0] : processes) {
+            try {
+                String stat = new String(Files.readAllBytes(new File(process, "stat").toPath()), StandardCharsets.UTF_8);
+                // the command name in parentheses may contain spaces
+                String parent = stat.substring(stat.lastIndexOf(')') + 2).split(" ")[1];
+                children.computeIfAbsent(parent, key -> new ArrayList<>()).add(process.getName());
+            } catch (IOException | RuntimeException e) {
+                // ended in the meantime
+            }
+        }
+        return children;
+    }
+
+    private static Set<String> subtree(Map<String, List<String>> children, String root) {
+        Set<String> descendants = new LinkedHashSet<>();
+        List<String> pending = new ArrayList<>(children.getOrDefault(root, new ArrayList<>()));
+        while (!pending.isEmpty()) {
+            String pid = pending.remove(pending.size() - 1);
+            if (descendants.add(pid)) {
+                pending.addAll(children.getOrDefault(pid, new ArrayList<>()));
+            }
+        }
+        return descendants;
+    }
+
+    /**
+     * @return the resident memory of a process in bytes, 0 if it ended
+     */
+    static long rss(String pid) {
+        try {
+            for (String line : Files.readAllLines(new File("/proc/" + pid + "/status").toPath(), StandardCharsets.UTF_8)) {
+                if (line.startsWith("VmRSS:")) {
+                    return Long.parseLong(line.substring(6).trim().split("\\s+")[0]) * 1024;
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            // ended in the meantime
+        }
+        return 0;
+    }
+
+    /**
+     * Kills processes at once, without giving them a chance to clean up.
+     */
+    static void kill(Collection<String> pids) {
+        if (pids.isEmpty()) {
+            return;
+        }
+        List<String> command = new ArrayList<>();
+        command.add("kill");
+        command.add("-9");
+        command.addAll(pids);
+        try {
+            new ProcessBuilder(command).redirectErrorStream(true).start().waitFor();
+        } catch (IOException e) {
+            System.err.println("Could not kill processes " + pids + ": " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,112 @@
+/**
+ * Copyright 2015 Q24
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.kahu.hawaii.cucumber.glue.html;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPOutputStream;
+
+import org.openqa.selenium.WebDriver;
+import org.openqa.selenium.remote.BeanToJsonConverter;
+import org.openqa.selenium.remote.Command;
+import org.openqa.selenium.remote.CommandExecutor;
+import org.openqa.selenium.remote.RemoteWebDriver;
+import org.openqa.selenium.remote.Response;
+
+import com.google.gson.JsonObject;
+
+/**
+ * Command executor that passes every command to the executor of a real
+ * driver and writes the command and its response to a log, one json object
+ * per line. A file name ending in ".gz" is compressed. The log can be
+ * replayed without a browser by the {@link ReplayWebDriver}.
+ */
+public class RecordingCommandExecutor implements CommandExecutor {
+
+    private final CommandExecutor delegate;
+    private final Writer writer;
+    private final BeanToJsonConverter converter = new BeanToJsonConverter();
+
+    public RecordingCommandExecutor(CommandExecutor delegate, File file) throws IOException {
+        this.delegate = delegate;
+        File parent = file.getAbsoluteFile().getParentFile();
+        if (parent != null) {
+            parent.mkdirs();
+        }
+        OutputStream out = new FileOutputStream(file);
+        if (file.getName().endsWith(".gz")) {
+            out = new GZIPOutputStream(out);
+        }
+        this.writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Records the commands of a driver from now on, starting the log with the
+     * capabilities of its session.
+     *
+     * @return true if the driver is recorded; only drivers that talk to their
+     *         browser through a command executor can be
+     */
+    public static boolean install(WebDriver driver, File file) throws IOException {
+        if (!(driver instanceof RemoteWebDriver)) {
+            return false;
+        }
+        RemoteWebDriver remoteDriver = (RemoteWebDriver) driver;
+        RecordingCommandExecutor executor = new RecordingCommandExecutor(remoteDriver.getCommandExecutor(), file);
+        JsonObject header = new JsonObject();
+        header.add("capabilities", executor.converter.convertObject(remoteDriver.getCapabilities().asMap()));
+        executor.write(header);
+        try {
+            CommandExecutors.replace(remoteDriver, executor);
+        } catch (IllegalStateException e) {
+            executor.close();
+            throw e;
+        }
+        return true;
+    }
+
+    @Override
+    public Response execute(Command command) throws IOException {
+        long start = System.currentTimeMillis();
+        Response response = delegate.execute(command);
+        JsonObject entry = new JsonObject();
+        entry.addProperty("name", command.getName());
+        entry.add("params", converter.convertObject(command.getParameters()));
+        entry.addProperty("status", response.getStatus());
+        entry.add("value", converter.convertObject(response.getValue()));
+        entry.addProperty("ms", System.currentTimeMillis() - start);
+        write(entry);
+        if ("quit".equals(command.getName())) {
+            close();
+        }
+        return response;
+    }
+
+    private synchronized void write(JsonObject entry) throws IOException {
+        writer.write(entry.toString());
+        writer.write('\n');
+    }
+
+    public synchronized void close() throws IOException {
+        writer.close();
+    }
+}
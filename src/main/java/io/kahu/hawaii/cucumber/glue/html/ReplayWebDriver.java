@@ -0,0 +1,175 @@
+/**
+ * Copyright 2015 Q24
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.kahu.hawaii.cucumber.glue.html;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+
+import org.openqa.selenium.WebDriverException;
+import org.openqa.selenium.remote.BeanToJsonConverter;
+import org.openqa.selenium.remote.Command;
+import org.openqa.selenium.remote.CommandExecutor;
+import org.openqa.selenium.remote.DesiredCapabilities;
+import org.openqa.selenium.remote.DriverCommand;
+import org.openqa.selenium.remote.JsonToBeanConverter;
+import org.openqa.selenium.remote.RemoteWebDriver;
+import org.openqa.selenium.remote.Response;
+import org.openqa.selenium.remote.UnreachableBrowserException;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+/**
+ * Driver that answers every command with the response recorded for it by a
+ * {@link RecordingCommandExecutor}, without a browser. The commands have to
+ * come in the recorded order with the recorded parameters; the first command
+ * that differs fails with a {@link DivergenceException} that names its
+ * position in the recording, the recorded command and the actual one.
+ * Recorded errors are thrown again, just like the real driver threw them.
+ */
+public class ReplayWebDriver extends RemoteWebDriver {
+
+    private final ReplayCommandExecutor replay;
+
+    public ReplayWebDriver(File recording) throws IOException {
+        this(new ReplayCommandExecutor(recording));
+    }
+
+    private ReplayWebDriver(ReplayCommandExecutor executor) {
+        super(executor, executor.capabilities);
+        this.replay = executor;
+    }
+
+    @Override
+    protected Response execute(String driverCommand, Map<String, ?> parameters) {
+        try {
+            return super.execute(driverCommand, parameters);
+        } catch (UnreachableBrowserException e) {
+            // the remote driver takes every executor failure for a dead browser
+            if (e.getCause() instanceof DivergenceException) {
+                throw (DivergenceException) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * @return the number of recorded commands replayed so far
+     */
+    public int getPosition() {
+        return replay.position;
+    }
+
+    /**
+     * @return the number of recorded commands that have not been replayed
+     */
+    public int getRemaining() {
+        return replay.entries.size() - replay.position;
+    }
+
+    private static class ReplayCommandExecutor implements CommandExecutor {
+
+        private final File file;
+        private final Map<String, Object> rawCapabilities;
+        private final DesiredCapabilities capabilities;
+        private final List<JsonObject> entries = new ArrayList<>();
+        private final BeanToJsonConverter toJson = new BeanToJsonConverter();
+        private final JsonToBeanConverter fromJson = new JsonToBeanConverter();
+        private int position;
+
+        @SuppressWarnings("unchecked")
+        ReplayCommandExecutor(File file) throws IOException {
+            this.file = file;
+            InputStream in = new FileInputStream(file);
+            if (file.getName().endsWith(".gz")) {
+                in = new GZIPInputStream(in);
+            }
+            JsonObject header = null;
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8))) {
+                JsonParser parser = new JsonParser();
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (line.isEmpty()) {
+                        continue;
+                    }
+                    JsonObject entry = parser.parse(line).getAsJsonObject();
+                    if (header == null) {
+                        header = entry;
+                    } else {
+                        entries.add(entry);
+                    }
+                }
+            }
+            if (header == null || !header.has("capabilities")) {
+                throw new IOException("Not a command recording: " + file);
+            }
+            this.rawCapabilities = (Map<String, Object>) fromJson.convert(Map.class, header.get("capabilities"));
+            this.capabilities = new DesiredCapabilities(rawCapabilities);
+        }
+
+        @Override
+        public synchronized Response execute(Command command) {
+            if (DriverCommand.NEW_SESSION.equals(command.getName())) {
+                Response response = new Response();
+                response.setSessionId("replay");
+                response.setStatus(0);
+                response.setValue(rawCapabilities);
+                return response;
+            }
+            JsonElement params = toJson.convertObject(command.getParameters());
+            if (position >= entries.size()) {
+                throw new DivergenceException(String.format("Command %d diverges from recording %s: the recording ended, but was %s %s", position + 1, file,
+                        command.getName(), params));
+            }
+            JsonObject entry = entries.get(position);
+            String name = entry.get("name").getAsString();
+            if (!name.equals(command.getName()) || !entry.get("params").equals(params)) {
+                throw new DivergenceException(String.format("Command %d diverges from recording %s: expected %s %s, but was %s %s", position + 1, file, name,
+                        entry.get("params"), command.getName(), params));
+            }
+            position++;
+            GlueMetrics.increment("replay.commands");
+            Response response = new Response();
+            response.setSessionId("replay");
+            response.setStatus(entry.get("status").getAsInt());
+            JsonElement value = entry.get("value");
+            response.setValue(value == null || value.isJsonNull() ? null : fromJson.convert(Object.class, value));
+            return response;
+        }
+    }
+
+    /**
+     * Thrown when a command differs from the recorded one.
+     */
+    public static class DivergenceException extends WebDriverException {
+
+        private static final long serialVersionUID = 1L;
+
+        public DivergenceException(String message) {
+            super(message);
+        }
+    }
+}
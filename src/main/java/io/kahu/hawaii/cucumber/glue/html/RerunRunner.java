@@ -0,0 +1,96 @@
+/**
+ * Copyright 2015 Q24
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.kahu.hawaii.cucumber.glue.html;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import cucumber.api.cli.Main;
+import cucumber.runtime.RuntimeOptions;
+import cucumber.runtime.model.CucumberFeature;
+
+/**
+ * Runs only the scenarios that failed in the previous run, as recorded in
+ * test.rerun.file (default target/rerun.txt), and reports per scenario
+ * whether its failure went away. Takes the same arguments as the cucumber
+ * command line of the previous run; its feature paths are replaced with the
+ * failed scenarios. The report is written to test.rerun.report (default
+ * target/rerun-report.txt).
+ */
+public class RerunRunner {
+
+    public static void main(String[] args) throws Throwable {
+        String rerunFile = System.getProperty("test.rerun.file", "target/rerun.txt");
+        System.setProperty("test.rerun.file", rerunFile);
+        System.setProperty("test.rerun", "true");
+
+        Map<String, String> failures = new FailedScenarios(new File(rerunFile), true).load();
+        if (failures.isEmpty()) {
+            System.out.println("No failed scenarios to rerun in " + rerunFile);
+            System.exit(0);
+        }
+
+        List<String> arguments = new ArrayList<>(Arrays.asList(args));
+        Map<String, String> originalLocations = new HashMap<>();
+        Map<String, StringBuilder> linesByPath = new LinkedHashMap<>();
+        for (Map.Entry<String, List<CucumberFeature>> entry : ShardPlanner.loadFeatures(arguments).entrySet()) {
+            for (CucumberFeature feature : entry.getValue()) {
+                for (String location : failures.keySet()) {
+                    int colon = location.lastIndexOf(':');
+                    if (colon > 0 && location.substring(0, colon).equals(feature.getPath())) {
+                        String path = ShardPlanner.argumentPath(entry.getKey(), feature.getPath());
+                        String line = location.substring(colon + 1);
+                        originalLocations.put(path + ":" + line, location);
+                        linesByPath.computeIfAbsent(path, key -> new StringBuilder(path)).append(':').append(line);
+                    }
+                }
+            }
+        }
+
+        arguments.removeAll(new RuntimeOptions(new ArrayList<>(arguments)).getFeaturePaths());
+        for (StringBuilder featureArgument : linesByPath.values()) {
+            arguments.add(featureArgument.toString());
+        }
+        System.out.println("Rerunning " + originalLocations.size() + " of " + failures.size() + " failed scenarios");
+        byte exitStatus = originalLocations.isEmpty() ? 1 : Main.run(arguments.toArray(new String[arguments.size()]), Thread.currentThread().getContextClassLoader());
+
+        Map<String, Boolean> outcomes = new HashMap<>();
+        if (HtmlSteps.getFailedScenarios() != null) {
+            for (Map.Entry<String, Boolean> outcome : HtmlSteps.getFailedScenarios().getRerunOutcomes().entrySet()) {
+                String original = originalLocations.get(outcome.getKey());
+                outcomes.put(original == null ? outcome.getKey() : original, outcome.getValue());
+            }
+        }
+        StringBuilder report = new StringBuilder();
+        for (Map.Entry<String, String> failure : failures.entrySet()) {
+            Boolean failedAgain = outcomes.get(failure.getKey());
+            String verdict = failedAgain == null ? "NOT RERUN" : failedAgain ? "FAILED AGAIN" : "PASSED ON RERUN";
+            report.append(String.format("%-16s %s %s%n", verdict, failure.getKey(), failure.getValue()));
+        }
+        System.out.print(report);
+        File reportFile = new File(System.getProperty("test.rerun.report", "target/rerun-report.txt"));
+        reportFile.getAbsoluteFile().getParentFile().mkdirs();
+        Files.write(reportFile.toPath(), report.toString().getBytes(StandardCharsets.UTF_8));
+        System.exit(exitStatus);
+    }
+}
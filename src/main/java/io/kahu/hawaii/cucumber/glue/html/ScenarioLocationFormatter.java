@@ -0,0 +1,103 @@
+/**
+ * Copyright 2015 Q24
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.kahu.hawaii.cucumber.glue.html;
+
+import java.util.List;
+
+import gherkin.formatter.Formatter;
+import gherkin.formatter.model.Background;
+import gherkin.formatter.model.Examples;
+import gherkin.formatter.model.Feature;
+import gherkin.formatter.model.Scenario;
+import gherkin.formatter.model.ScenarioOutline;
+import gherkin.formatter.model.Step;
+
+/**
+ * Cucumber plugin that makes the location (feature path and line) of the
+ * running scenario available to the glue, as hooks only get the name and id
+ * of a scenario. Register it with
+ * <code>--plugin io.kahu.hawaii.cucumber.glue.html.ScenarioLocationFormatter</code>.
+ */
+public class ScenarioLocationFormatter implements Formatter {
+
+    private static final ThreadLocal<String> CURRENT_LOCATION = new ThreadLocal<>();
+
+    private String uri;
+
+    /**
+     * @return the location of the scenario running on this thread as
+     *         "path:line", the format cucumber accepts as a feature argument,
+     *         or null if the plugin is not registered
+     */
+    public static String currentLocation() {
+        return CURRENT_LOCATION.get();
+    }
+
+    @Override
+    public void uri(String uri) {
+        this.uri = uri;
+    }
+
+    @Override
+    public void startOfScenarioLifeCycle(Scenario scenario) {
+        CURRENT_LOCATION.set(uri + ":" + scenario.getLine());
+    }
+
+    @Override
+    public void endOfScenarioLifeCycle(Scenario scenario) {
+        CURRENT_LOCATION.remove();
+    }
+
+    @Override
+    public void syntaxError(String state, String event, List<String> legalEvents, String uri, Integer line) {
+    }
+
+    @Override
+    public void feature(Feature feature) {
+    }
+
+    @Override
+    public void scenarioOutline(ScenarioOutline scenarioOutline) {
+    }
+
+    @Override
+    public void examples(Examples examples) {
+    }
+
+    @Override
+    public void background(Background background) {
+    }
+
+    @Override
+    public void scenario(Scenario scenario) {
+    }
+
+    @Override
+    public void step(Step step) {
+    }
+
+    @Override
+    public void done() {
+    }
+
+    @Override
+    public void close() {
+    }
+
+    @Override
+    public void eof() {
+    }
+}
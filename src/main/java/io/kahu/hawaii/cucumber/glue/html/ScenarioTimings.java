@@ -0,0 +1,122 @@
+/**
+ * Copyright 2015 Q24
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.kahu.hawaii.cucumber.glue.html;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Scenario durations, appended to a local file as "location, id, millis" per
+ * line by the glue and read back by the {@link ShardPlanner}. Both use
+ * test.scenario.timings, by default {@value #DEFAULT_FILE}.
+ */
+public class ScenarioTimings {
+
+    /**
+     * The file the glue records to and the planner reads, unless
+     * test.scenario.timings names another.
+     */
+    public static final String DEFAULT_FILE = "target/scenario-timings.txt";
+
+    /**
+     * Written instead of the location when the
+     * {@link ScenarioLocationFormatter} is not registered.
+     */
+    private static final String UNKNOWN_LOCATION = "-";
+
+    private final File file;
+
+    public ScenarioTimings(File file) {
+        this.file = file;
+    }
+
+    /**
+     * @return the timings in the file of test.scenario.timings
+     */
+    public static ScenarioTimings fromProperties() {
+        return new ScenarioTimings(new File(System.getProperty("test.scenario.timings", DEFAULT_FILE)));
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Appends the duration of a scenario to the file.
+     *
+     * @param location
+     *            the location as "path:line", may be null
+     * @param id
+     *            the id of the scenario
+     * @param millis
+     *            the duration of the scenario
+     */
+    public synchronized void record(String location, String id, long millis) {
+        File parent = file.getAbsoluteFile().getParentFile();
+        if (parent != null) {
+            parent.mkdirs();
+        }
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(file, true), StandardCharsets.UTF_8)) {
+            writer.write((location == null ? UNKNOWN_LOCATION : location) + "\t" + id + "\t" + millis + System.lineSeparator());
+        } catch (IOException e) {
+            System.err.println("Could not write scenario timings " + file + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Reads the file.
+     *
+     * @return the average duration in milliseconds per location; scenarios
+     *         recorded without a location are left out
+     */
+    public Map<String, Long> load() {
+        Map<String, long[]> totals = new HashMap<>();
+        if (file.isFile()) {
+            try (BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    String[] fields = line.split("\t");
+                    if (fields.length < 3 || UNKNOWN_LOCATION.equals(fields[0])) {
+                        continue;
+                    }
+                    try {
+                        long millis = Long.parseLong(fields[fields.length - 1].trim());
+                        long[] total = totals.computeIfAbsent(fields[0], location -> new long[2]);
+                        total[0] += millis;
+                        total[1]++;
+                    } catch (NumberFormatException e) {
+                        // ignore, corrupt line
+                    }
+                }
+            } catch (IOException e) {
+                System.err.println("Could not read scenario timings " + file + ": " + e.getMessage());
+            }
+        }
+        Map<String, Long> averages = new HashMap<>();
+        for (Map.Entry<String, long[]> entry : totals.entrySet()) {
+            averages.put(entry.getKey(), entry.getValue()[0] / entry.getValue()[1]);
+        }
+        return averages;
+    }
+}
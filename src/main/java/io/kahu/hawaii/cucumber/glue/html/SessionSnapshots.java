@@ -0,0 +1,163 @@
+/**
+ * Copyright 2015 Q24
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.kahu.hawaii.cucumber.glue.html;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.openqa.selenium.Cookie;
+import org.openqa.selenium.JavascriptExecutor;
+import org.openqa.selenium.WebDriver;
+import org.openqa.selenium.WebDriverException;
+
+/**
+ * The authenticated browser state of named users, captured once per run
+ * after a real login, so later scenarios can restore it instead of logging
+ * in through the UI again. A snapshot holds the cookies of the domain of the
+ * application, and its local and session storage. It expires after the time
+ * to live, or when the application rejects it. The expiry of the cookies
+ * does not end it: a short-lived cookie, e.g. of a tracker, says nothing
+ * about the login.
+ */
+public class SessionSnapshots {
+
+    private static final String CAPTURE_STORAGE_SCRIPT = "try { var dump = function(s) { var d = {};"
+            + " for (var i = 0; i < s.length; i++) { var k = s.key(i); d[k] = s.getItem(k); } return JSON.stringify(d); };"
+            + " return [dump(localStorage), dump(sessionStorage)]; } catch (e) { return null; }";
+    private static final String RESTORE_STORAGE_SCRIPT = "try { var load = function(s, d) { d = JSON.parse(d); for (var k in d) { s.setItem(k, d[k]); } };"
+            + " load(localStorage, arguments[0]); load(sessionStorage, arguments[1]); } catch (e) { }";
+
+    private final long timeToLive;
+    private final Map<String, Snapshot> snapshots = new HashMap<>();
+
+    /**
+     * @param timeToLive
+     *            the milliseconds a snapshot is used at most
+     */
+    public SessionSnapshots(long timeToLive) {
+        this.timeToLive = timeToLive;
+    }
+
+    /**
+     * @return the snapshot of the user, or null if there is none or it
+     *         expired
+     */
+    public synchronized Snapshot get(String user) {
+        Snapshot snapshot = snapshots.get(user);
+        if (snapshot != null && snapshot.expiresAt <= System.currentTimeMillis()) {
+            snapshots.remove(user);
+            GlueMetrics.increment("session.snapshot.expired");
+            return null;
+        }
+        return snapshot;
+    }
+
+    /**
+     * Captures the state of the browser as the snapshot of the user.
+     *
+     * @param host
+     *            the host of the application; cookies of other domains are
+     *            left out
+     * @param scripts
+     *            false if the browser does not run scripts, so the storage
+     *            can not be captured
+     */
+    public Snapshot capture(String user, WebDriver driver, String host, boolean scripts) {
+        long expiresAt = System.currentTimeMillis() + timeToLive;
+        List<Cookie> cookies = new ArrayList<>();
+        for (Cookie cookie : driver.manage().getCookies()) {
+            if (isOfHost(cookie, host)) {
+                cookies.add(cookie);
+            }
+        }
+        String localStorage = null;
+        String sessionStorage = null;
+        if (scripts) {
+            Object storage = ((JavascriptExecutor) driver).executeScript(CAPTURE_STORAGE_SCRIPT);
+            if (storage instanceof List && ((List<?>) storage).size() == 2) {
+                localStorage = (String) ((List<?>) storage).get(0);
+                sessionStorage = (String) ((List<?>) storage).get(1);
+            }
+        }
+        Snapshot snapshot = new Snapshot(cookies, localStorage, sessionStorage, expiresAt);
+        synchronized (this) {
+            snapshots.put(user, snapshot);
+        }
+        return snapshot;
+    }
+
+    /**
+     * Drops the snapshot of the user, e.g. when the application rejected it.
+     */
+    public synchronized void invalidate(String user) {
+        snapshots.remove(user);
+    }
+
+    private static boolean isOfHost(Cookie cookie, String host) {
+        String domain = cookie.getDomain();
+        if (domain == null || host == null) {
+            return true;
+        }
+        domain = domain.startsWith(".") ? domain.substring(1) : domain;
+        return host.equalsIgnoreCase(domain) || host.toLowerCase().endsWith("." + domain.toLowerCase());
+    }
+
+    /**
+     * The captured state of one user.
+     */
+    public static class Snapshot {
+
+        private final List<Cookie> cookies;
+        private final String localStorage;
+        private final String sessionStorage;
+        private final long expiresAt;
+
+        Snapshot(List<Cookie> cookies, String localStorage, String sessionStorage, long expiresAt) {
+            this.cookies = cookies;
+            this.localStorage = localStorage;
+            this.sessionStorage = sessionStorage;
+            this.expiresAt = expiresAt;
+        }
+
+        /**
+         * Restores the state into the browser, which has to be on a page of
+         * the application: cookies can only be set for the current domain.
+         */
+        public void restore(WebDriver driver, boolean scripts) {
+            long now = System.currentTimeMillis();
+            for (Cookie cookie : cookies) {
+                if (cookie.getExpiry() == null || cookie.getExpiry().getTime() > now) {
+                    try {
+                        driver.manage().addCookie(cookie);
+                    } catch (WebDriverException e) {
+                        // e.g. a cookie of a parent domain the driver refuses
+                    }
+                }
+            }
+            if (scripts && (localStorage != null || sessionStorage != null)) {
+                ((JavascriptExecutor) driver).executeScript(RESTORE_STORAGE_SCRIPT, localStorage == null ? "{}" : localStorage,
+                        sessionStorage == null ? "{}" : sessionStorage);
+            }
+        }
+
+        public Date getExpiry() {
+            return new Date(expiresAt);
+        }
+    }
+}
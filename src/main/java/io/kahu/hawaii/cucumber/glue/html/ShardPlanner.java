@@ -0,0 +1,263 @@
+/**
+ * Copyright 2015 Q24
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.kahu.hawaii.cucumber.glue.html;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+
+import org.apache.commons.lang.StringUtils;
+
+import cucumber.runtime.RuntimeOptions;
+import cucumber.runtime.io.MultiLoader;
+import cucumber.runtime.model.CucumberFeature;
+import cucumber.runtime.model.CucumberTagStatement;
+
+/**
+ * Splits the scenarios of a suite into shards of about equal duration, using
+ * the durations recorded in the scenario timings file (test.scenario.timings).
+ * Scenarios are assigned longest first to the shard that has the least work
+ * so far. The plan only depends on the features and the timings file, so
+ * every CI node computes the same plan.
+ * <p>
+ * Usage: <code>ShardPlanner &lt;shard count&gt; [cucumber options] [feature paths]</code>
+ * writes one file per shard to test.shard.dir (default target/shards) in the
+ * format of the cucumber rerun plugin, so a node can run its shard with
+ * <code>@target/shards/shard-3.txt</code>. See {@link ShardRunner} to select
+ * the shard with a system property instead.
+ */
+public class ShardPlanner {
+
+    /**
+     * Estimate for a scenario when there are no timings at all.
+     */
+    private static final long DEFAULT_ESTIMATE = 1000;
+
+    private final Map<String, TreeMap<Integer, Long>> timingsByPath = new HashMap<>();
+
+    /**
+     * @param timings
+     *            the duration in milliseconds per "path:line"
+     */
+    public ShardPlanner(Map<String, Long> timings) {
+        for (Map.Entry<String, Long> entry : timings.entrySet()) {
+            int colon = entry.getKey().lastIndexOf(':');
+            if (colon <= 0) {
+                continue;
+            }
+            try {
+                int line = Integer.parseInt(entry.getKey().substring(colon + 1));
+                timingsByPath.computeIfAbsent(entry.getKey().substring(0, colon), path -> new TreeMap<>()).put(line, entry.getValue());
+            } catch (NumberFormatException e) {
+                // ignore, not a location
+            }
+        }
+    }
+
+    /**
+     * Plans the given features over a number of shards.
+     *
+     * @param featuresByRoot
+     *            the features per feature path they were loaded from
+     * @return the shards, possibly without scenarios
+     */
+    public List<Shard> plan(Map<String, List<CucumberFeature>> featuresByRoot, int count) {
+        List<Item> items = new ArrayList<>();
+        for (Map.Entry<String, List<CucumberFeature>> entry : featuresByRoot.entrySet()) {
+            for (CucumberFeature feature : entry.getValue()) {
+                items.addAll(estimate(entry.getKey(), feature));
+            }
+        }
+        long known = 0;
+        int knownCount = 0;
+        for (Item item : items) {
+            if (item.millis >= 0) {
+                known += item.millis;
+                knownCount++;
+            }
+        }
+        long unknownEstimate = knownCount == 0 ? DEFAULT_ESTIMATE : known / knownCount;
+        for (Item item : items) {
+            if (item.millis < 0) {
+                item.millis = unknownEstimate;
+            }
+        }
+        Collections.sort(items, Comparator.comparingLong((Item item) -> -item.millis).thenComparing(item -> item.path).thenComparingInt(item -> item.line));
+
+        List<Shard> shards = new ArrayList<>();
+        PriorityQueue<Shard> byLoad = new PriorityQueue<>(Math.max(1, count),
+                Comparator.comparingLong((Shard shard) -> shard.estimatedMillis).thenComparingInt(shard -> shard.index));
+        for (int i = 1; i <= count; i++) {
+            Shard shard = new Shard(i);
+            shards.add(shard);
+            byLoad.add(shard);
+        }
+        for (Item item : items) {
+            Shard shard = byLoad.poll();
+            shard.add(item);
+            byLoad.add(shard);
+        }
+        return shards;
+    }
+
+    /**
+     * Estimates each scenario and scenario outline of a feature. The lines of
+     * the examples of an outline lie between the outline and the next
+     * element, so their recorded durations are summed.
+     */
+    private List<Item> estimate(String root, CucumberFeature feature) {
+        List<Item> items = new ArrayList<>();
+        TreeMap<Integer, Long> timings = timingsByPath.get(feature.getPath());
+        List<CucumberTagStatement> elements = feature.getFeatureElements();
+        for (int i = 0; i < elements.size(); i++) {
+            int line = elements.get(i).getGherkinModel().getLine();
+            int nextLine = i + 1 < elements.size() ? elements.get(i + 1).getGherkinModel().getLine() : Integer.MAX_VALUE;
+            long millis = -1;
+            if (timings != null) {
+                for (Long duration : timings.subMap(line, nextLine).values()) {
+                    millis = Math.max(0, millis) + duration;
+                }
+            }
+            items.add(new Item(argumentPath(root, feature.getPath()), line, millis));
+        }
+        return items;
+    }
+
+    /**
+     * Cucumber reports the path of a feature relative to the directory it was
+     * found in, which is also how its timings are recorded. To run it, the
+     * directory has to be put in front again.
+     */
+    static String argumentPath(String root, String path) {
+        if (root.endsWith(".feature") || root.contains(".feature:") || path.startsWith(root)) {
+            return path;
+        }
+        return StringUtils.removeEnd(root, "/") + "/" + path;
+    }
+
+    /**
+     * Loads the features like the cucumber command line with the given
+     * arguments would, per feature path.
+     */
+    static Map<String, List<CucumberFeature>> loadFeatures(List<String> cucumberArgs) {
+        RuntimeOptions runtimeOptions = new RuntimeOptions(new ArrayList<>(cucumberArgs));
+        MultiLoader resourceLoader = new MultiLoader(ShardPlanner.class.getClassLoader());
+        Map<String, List<CucumberFeature>> featuresByRoot = new LinkedHashMap<>();
+        for (String featurePath : runtimeOptions.getFeaturePaths()) {
+            featuresByRoot.put(featurePath, CucumberFeature.load(resourceLoader, Collections.singletonList(featurePath), runtimeOptions.getFilters()));
+        }
+        return featuresByRoot;
+    }
+
+    static ShardPlanner fromTimingsFile() {
+        ScenarioTimings timings = ScenarioTimings.fromProperties();
+        if (!timings.getFile().isFile()) {
+            System.err.println("No scenario timings in " + timings.getFile() + ", every scenario is estimated to take as long");
+        }
+        return new ShardPlanner(timings.load());
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("Usage: ShardPlanner <shard count> [cucumber options] [feature paths]");
+            System.exit(1);
+        }
+        int count = Integer.parseInt(args[0]);
+        Map<String, List<CucumberFeature>> features = loadFeatures(Arrays.asList(args).subList(1, args.length));
+        File dir = new File(System.getProperty("test.shard.dir", "target/shards"));
+        dir.mkdirs();
+        for (Shard shard : fromTimingsFile().plan(features, count)) {
+            File file = new File(dir, "shard-" + shard.getIndex() + ".txt");
+            Files.write(file.toPath(), String.join(" ", shard.getFeatureArguments()).getBytes(StandardCharsets.UTF_8));
+            System.out.println(String.format("shard %d: %d scenarios, estimated %d s -> %s", shard.getIndex(), shard.items.size(),
+                    shard.getEstimatedMillis() / 1000, file));
+        }
+    }
+
+    /**
+     * A part of the suite to run on one node.
+     */
+    public static class Shard {
+        private final int index;
+        private final List<Item> items = new ArrayList<>();
+        private long estimatedMillis;
+
+        private Shard(int index) {
+            this.index = index;
+        }
+
+        private void add(Item item) {
+            items.add(item);
+            estimatedMillis += item.millis;
+        }
+
+        /**
+         * @return the 1-based index of the shard
+         */
+        public int getIndex() {
+            return index;
+        }
+
+        public long getEstimatedMillis() {
+            return estimatedMillis;
+        }
+
+        /**
+         * @return one "path:line:line" argument per feature, in the format
+         *         cucumber accepts as feature path
+         */
+        public List<String> getFeatureArguments() {
+            Map<String, List<Integer>> linesByPath = new LinkedHashMap<>();
+            List<Item> sorted = new ArrayList<>(items);
+            Collections.sort(sorted, Comparator.comparing((Item item) -> item.path).thenComparingInt(item -> item.line));
+            for (Item item : sorted) {
+                linesByPath.computeIfAbsent(item.path, path -> new ArrayList<>()).add(item.line);
+            }
+            List<String> arguments = new ArrayList<>();
+            for (Map.Entry<String, List<Integer>> entry : linesByPath.entrySet()) {
+                StringBuilder argument = new StringBuilder(entry.getKey());
+                for (Integer line : entry.getValue()) {
+                    argument.append(':').append(line);
+                }
+                arguments.add(argument.toString());
+            }
+            return arguments;
+        }
+    }
+
+    private static class Item {
+        private final String path;
+        private final int line;
+        private long millis;
+
+        private Item(String path, int line, long millis) {
+            this.path = path;
+            this.line = line;
+            this.millis = millis;
+        }
+    }
+}
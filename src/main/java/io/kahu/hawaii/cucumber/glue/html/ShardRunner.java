@@ -0,0 +1,62 @@
+/**
+ * Copyright 2015 Q24
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.kahu.hawaii.cucumber.glue.html;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import cucumber.api.cli.Main;
+import cucumber.runtime.RuntimeOptions;
+import cucumber.runtime.model.CucumberFeature;
+
+/**
+ * Runs the shard of the suite selected with test.shard, e.g.
+ * <code>-Dtest.shard=3/12</code> for the third of twelve shards. Takes the
+ * same arguments as the cucumber command line; the feature paths are
+ * replaced with the scenarios of the shard as planned by the
+ * {@link ShardPlanner}.
+ */
+public class ShardRunner {
+
+    public static void main(String[] args) throws Throwable {
+        String shard = System.getProperty("test.shard");
+        if (shard == null || !shard.matches("\\d+/\\d+")) {
+            System.err.println("Specify the shard to run as -Dtest.shard=<index>/<count>, e.g. -Dtest.shard=3/12");
+            System.exit(1);
+        }
+        int index = Integer.parseInt(shard.substring(0, shard.indexOf('/')));
+        int count = Integer.parseInt(shard.substring(shard.indexOf('/') + 1));
+        if (index < 1 || index > count) {
+            throw new IllegalArgumentException("Shard index must be between 1 and " + count + ": " + shard);
+        }
+
+        List<String> arguments = new ArrayList<>(Arrays.asList(args));
+        Map<String, List<CucumberFeature>> features = ShardPlanner.loadFeatures(arguments);
+        ShardPlanner.Shard selected = ShardPlanner.fromTimingsFile().plan(features, count).get(index - 1);
+        if (selected.getFeatureArguments().isEmpty()) {
+            System.out.println("Shard " + shard + " has no scenarios to run");
+            System.exit(0);
+        }
+        System.out.println(String.format("Running shard %s, estimated %d s", shard, selected.getEstimatedMillis() / 1000));
+
+        arguments.removeAll(new RuntimeOptions(new ArrayList<>(arguments)).getFeaturePaths());
+        arguments.addAll(selected.getFeatureArguments());
+        byte exitStatus = Main.run(arguments.toArray(new String[arguments.size()]), Thread.currentThread().getContextClassLoader());
+        System.exit(exitStatus);
+    }
+}
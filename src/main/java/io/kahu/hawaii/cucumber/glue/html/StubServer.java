@@ -0,0 +1,343 @@
+/**
+ * Copyright 2015 Q24
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.kahu.hawaii.cucumber.glue.html;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.io.Writer;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+
+import org.apache.commons.lang.StringUtils;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParser;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Embedded HTTP server that stands in for the application under test. In
+ * record mode it forwards every request to the real application and stores
+ * the response on disk; in replay mode it serves the stored responses, so a
+ * run does not need the application at all.
+ * <p>
+ * A request matches a recording on its method, path, query parameters
+ * (except the ones in test.stub.ignore.params, e.g. cache busters), the
+ * headers in test.stub.match.headers and its body. Requests that match the
+ * same recording, e.g. a GET of a resource before and after a POST that
+ * changed it, get the responses in the order they were recorded in; once
+ * they run out, the last one is repeated.
+ */
+public class StubServer {
+
+    private static final List<String> SKIPPED_RESPONSE_HEADERS = Arrays.asList("transfer-encoding", "connection", "content-length", "keep-alive");
+    private static final List<String> SKIPPED_REQUEST_HEADERS = Arrays.asList("host", "connection", "content-length", "keep-alive", "proxy-connection");
+
+    private final boolean record;
+    private final String target;
+    private final File dir;
+    private final List<String> ignoredParams;
+    private final List<String> matchedHeaders;
+    private final Gson gson = new GsonBuilder().setPrettyPrinting().disableHtmlEscaping().create();
+    private final Map<String, List<Recording>> recorded = new HashMap<>();
+    private final Map<String, Integer> replayed = new HashMap<>();
+    private HttpServer server;
+    private String url;
+
+    /**
+     * @param record
+     *            true to record, false to replay
+     * @param target
+     *            the base url of the real application, used when recording
+     * @param dir
+     *            the directory the recordings are kept in
+     */
+    public StubServer(boolean record, String target, File dir, List<String> ignoredParams, List<String> matchedHeaders) {
+        this.record = record;
+        this.target = StringUtils.removeEnd(target, "/");
+        this.dir = dir;
+        this.ignoredParams = ignoredParams;
+        this.matchedHeaders = new ArrayList<>();
+        for (String header : matchedHeaders) {
+            this.matchedHeaders.add(header.trim().toLowerCase());
+        }
+    }
+
+    /**
+     * Starts the server.
+     *
+     * @param host
+     *            the host name the browser reaches the server on
+     * @param port
+     *            the port, 0 for any free port
+     */
+    public void start(String host, int port) throws IOException {
+        dir.mkdirs();
+        server = HttpServer.create(new InetSocketAddress(port), 0);
+        server.createContext("/", this::handle);
+        server.setExecutor(Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "stub-server");
+            thread.setDaemon(true);
+            return thread;
+        }));
+        server.start();
+        url = "http://" + host + ":" + server.getAddress().getPort();
+        System.err.println((record ? "Recording " + target : "Replaying " + dir) + " on " + url);
+    }
+
+    public void stop() {
+        if (server != null) {
+            server.stop(0);
+        }
+    }
+
+    /**
+     * @return the base url of the server, to use instead of the base url of
+     *         the application
+     */
+    public String getUrl() {
+        return url;
+    }
+
+    /**
+     * @return the base url of the application the server records, or null
+     *         when it replays and needs no application
+     */
+    public String getTarget() {
+        return record ? target : null;
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            byte[] body = readAll(exchange.getRequestBody());
+            String key = keyOf(exchange, body);
+            File file = new File(dir, sha1(key.getBytes(StandardCharsets.UTF_8)) + ".json");
+            Recording recording;
+            if (record) {
+                recording = forward(exchange, body);
+                recording.request = key;
+                record(key, file, recording);
+                GlueMetrics.increment("stub.recorded");
+            } else if (file.isFile()) {
+                recording = replay(key, file);
+                GlueMetrics.increment("stub.replayed");
+            } else {
+                GlueMetrics.increment("stub.missing");
+                System.err.println("No recording for " + key.replace('\n', ' '));
+                recording = new Recording();
+                recording.status = 404;
+                recording.body = Base64.getEncoder().encodeToString(("No recording for " + key).getBytes(StandardCharsets.UTF_8));
+            }
+            respond(exchange, recording);
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Stub server failed on " + exchange.getRequestURI() + ": " + e);
+            // too late once the response has started
+            if (exchange.getResponseCode() == -1) {
+                exchange.sendResponseHeaders(502, -1);
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    /**
+     * Adds a response to the responses recorded for a request in this run,
+     * and writes them. A response that is the same as the one before it is
+     * counted instead of stored again.
+     */
+    private synchronized void record(String key, File file, Recording recording) throws IOException {
+        List<Recording> sequence = recorded.computeIfAbsent(key, k -> new ArrayList<>());
+        Recording last = sequence.isEmpty() ? null : sequence.get(sequence.size() - 1);
+        if (last != null && last.isSameResponse(recording)) {
+            last.times++;
+        } else {
+            sequence.add(recording);
+        }
+        try (Writer writer = Files.newBufferedWriter(file.toPath(), StandardCharsets.UTF_8)) {
+            gson.toJson(sequence, writer);
+        }
+    }
+
+    /**
+     * @return the next recorded response for a request, or the last one when
+     *         it was requested more often than recorded
+     */
+    private Recording replay(String key, File file) throws IOException {
+        List<Recording> sequence = new ArrayList<>();
+        try (Reader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+            JsonElement json = new JsonParser().parse(reader);
+            // recordings of older versions hold a single response
+            for (JsonElement element : json.isJsonArray() ? json.getAsJsonArray() : Collections.singletonList(json)) {
+                sequence.add(gson.fromJson(element, Recording.class));
+            }
+        }
+        int position;
+        synchronized (this) {
+            position = replayed.merge(key, 1, Integer::sum) - 1;
+        }
+        for (Recording recording : sequence) {
+            position -= Math.max(1, recording.times);
+            if (position < 0) {
+                return recording;
+            }
+        }
+        return sequence.get(sequence.size() - 1);
+    }
+
+    /**
+     * @return the description of the request that decides which recording
+     *         it matches
+     */
+    private String keyOf(HttpExchange exchange, byte[] body) {
+        StringBuilder key = new StringBuilder(exchange.getRequestMethod()).append(' ').append(exchange.getRequestURI().getRawPath());
+        String query = exchange.getRequestURI().getRawQuery();
+        if (query != null) {
+            List<String> params = new ArrayList<>();
+            for (String param : query.split("&")) {
+                if (!ignoredParams.contains(StringUtils.substringBefore(param, "="))) {
+                    params.add(param);
+                }
+            }
+            Collections.sort(params);
+            key.append('?').append(StringUtils.join(params, '&'));
+        }
+        for (String header : matchedHeaders) {
+            key.append('\n').append(header).append(": ").append(StringUtils.defaultString(exchange.getRequestHeaders().getFirst(header)));
+        }
+        if (body.length > 0) {
+            key.append('\n').append(sha1(body));
+        }
+        return key.toString();
+    }
+
+    private Recording forward(HttpExchange exchange, byte[] body) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(target + exchange.getRequestURI()).openConnection();
+        connection.setInstanceFollowRedirects(false);
+        connection.setRequestMethod(exchange.getRequestMethod());
+        for (Map.Entry<String, List<String>> header : exchange.getRequestHeaders().entrySet()) {
+            if (!SKIPPED_REQUEST_HEADERS.contains(header.getKey().toLowerCase())) {
+                for (String value : header.getValue()) {
+                    connection.addRequestProperty(header.getKey(), value);
+                }
+            }
+        }
+        if (body.length > 0) {
+            connection.setDoOutput(true);
+            try (OutputStream out = connection.getOutputStream()) {
+                out.write(body);
+            }
+        }
+        Recording recording = new Recording();
+        recording.status = connection.getResponseCode();
+        for (Map.Entry<String, List<String>> header : connection.getHeaderFields().entrySet()) {
+            if (header.getKey() != null && !SKIPPED_RESPONSE_HEADERS.contains(header.getKey().toLowerCase())) {
+                recording.headers.put(header.getKey(), new ArrayList<>(header.getValue()));
+            }
+        }
+        InputStream in = recording.status >= 400 ? connection.getErrorStream() : connection.getInputStream();
+        recording.body = Base64.getEncoder().encodeToString(in == null ? new byte[0] : readAll(in));
+        return recording;
+    }
+
+    private void respond(HttpExchange exchange, Recording recording) throws IOException {
+        for (Map.Entry<String, List<String>> header : recording.headers.entrySet()) {
+            for (String value : header.getValue()) {
+                if ("Location".equalsIgnoreCase(header.getKey())) {
+                    // keep redirects on the stub server
+                    value = value.replace(target, url);
+                } else if ("Set-Cookie".equalsIgnoreCase(header.getKey())) {
+                    // the browser only takes cookies for the host of the stub
+                    // server, which is plain http
+                    value = value.replaceAll("(?i);\\s*(domain=[^;]*|secure)(?=;|$)", "");
+                }
+                exchange.getResponseHeaders().add(header.getKey(), value);
+            }
+        }
+        byte[] body = recording.body == null ? new byte[0] : Base64.getDecoder().decode(recording.body);
+        exchange.sendResponseHeaders(recording.status, body.length == 0 ? -1 : body.length);
+        if (body.length > 0) {
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        }
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+        in.close();
+        return out.toByteArray();
+    }
+
+    private static String sha1(byte[] value) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(value);
+            StringBuilder hex = new StringBuilder();
+            for (byte b : digest) {
+                hex.append(String.format("%02x", b));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * A recorded response, stored as json.
+     */
+    private static class Recording {
+        private String request;
+        private int status;
+        private Map<String, List<String>> headers = new LinkedHashMap<>();
+        private String body;
+        private int times = 1;
+
+        /**
+         * @return true if the response is the same, apart from its date
+         */
+        boolean isSameResponse(Recording other) {
+            Map<String, List<String>> otherHeaders = new LinkedHashMap<>(other.headers);
+            Map<String, List<String>> ownHeaders = new LinkedHashMap<>(headers);
+            otherHeaders.remove("Date");
+            ownHeaders.remove("Date");
+            return status == other.status && StringUtils.equals(body, other.body) && ownHeaders.equals(otherHeaders);
+        }
+    }
+}
@@ -0,0 +1,202 @@
+/**
+ * Copyright 2015 Q24
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.kahu.hawaii.cucumber.glue.html;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.openqa.selenium.By;
+import org.openqa.selenium.JavascriptExecutor;
+import org.openqa.selenium.SearchContext;
+import org.openqa.selenium.WebDriver;
+import org.openqa.selenium.WebElement;
+import org.openqa.selenium.htmlunit.HtmlUnitDriver;
+import org.openqa.selenium.internal.WrapsDriver;
+import org.openqa.selenium.internal.WrapsElement;
+
+/**
+ * Locates elements of one tag by their text or by their value attribute.
+ * When the browser runs scripts, the elements are found in one script call
+ * that only walks the elements of that tag, instead of evaluating an XPath
+ * expression over the whole document, which is slow on large pages and
+ * browsers without native XPath (Internet Explorer). Otherwise an XPath
+ * expression is used, with the text quoted properly, so texts with
+ * apostrophes are found too.
+ * <p>
+ * Both strategies match like the XPath expressions the steps used to build:
+ * an exact text matches any text node directly in the element, a partial
+ * text the first one. test.locator.strategy forces a strategy: "script",
+ * "xpath" or "auto" (the default).
+ */
+public class TextLocator extends By {
+
+    private static final String STRATEGY = System.getProperty("test.locator.strategy", "auto");
+
+    private static final String SCRIPT = "var tag = arguments[0], mode = arguments[1], text = arguments[2], root = arguments[3] || document;"
+            + " var found = [], nodes = root.getElementsByTagName(tag);"
+            + " for (var i = 0; i < nodes.length; i++) { var node = nodes[i], match = false;"
+            + "   if (mode === 'value') { var value = node.getAttribute('value'); match = value !== null && value.indexOf(text) >= 0; }"
+            + "   else { for (var child = node.firstChild; child; child = child.nextSibling) { if (child.nodeType === 3) {"
+            + "     if (mode === 'text') { if (child.data === text) { match = true; break; } }"
+            + "     else { match = child.data.indexOf(text) >= 0; break; } } } }"
+            + "   if (match) { found.push(node); } }"
+            + " return found;";
+
+    private enum Mode {
+        TEXT, PARTIAL_TEXT, VALUE
+    }
+
+    private final String tag;
+    private final Mode mode;
+    private final String text;
+
+    private TextLocator(String tag, Mode mode, String text) {
+        this.tag = tag;
+        this.mode = mode;
+        this.text = text;
+    }
+
+    /**
+     * @return a locator of the buttons with exactly the given text
+     */
+    public static TextLocator buttonWithText(String text) {
+        return new TextLocator("button", Mode.TEXT, text);
+    }
+
+    /**
+     * @return a locator of the buttons with a text containing the given text
+     */
+    public static TextLocator buttonWithTextContaining(String text) {
+        return new TextLocator("button", Mode.PARTIAL_TEXT, text);
+    }
+
+    /**
+     * @return a locator of the inputs with a value attribute containing the
+     *         given text
+     */
+    public static TextLocator inputWithValueContaining(String text) {
+        return new TextLocator("input", Mode.VALUE, text);
+    }
+
+    /**
+     * @return the text as an XPath string literal, concatenated from parts
+     *         when it contains both kinds of quotes
+     */
+    public static String xpathLiteral(String text) {
+        if (!text.contains("'")) {
+            return "'" + text + "'";
+        }
+        if (!text.contains("\"")) {
+            return "\"" + text + "\"";
+        }
+        StringBuilder literal = new StringBuilder("concat(");
+        String[] parts = text.split("'", -1);
+        for (int i = 0; i < parts.length; i++) {
+            if (i > 0) {
+                literal.append(", \"'\", ");
+            }
+            literal.append('\'').append(parts[i]).append('\'');
+        }
+        return literal.append(')').toString();
+    }
+
+    /**
+     * @return the XPath expression this locator evaluates when scripts are
+     *         not used, relative to the search context
+     */
+    public String toXPath(boolean relative) {
+        String prefix = relative ? ".//" : "//";
+        switch (mode) {
+        case TEXT:
+            return prefix + tag + "[text()=" + xpathLiteral(text) + "]";
+        case PARTIAL_TEXT:
+            return prefix + tag + "[contains(text(), " + xpathLiteral(text) + ")]";
+        default:
+            return prefix + tag + "[contains(@value, " + xpathLiteral(text) + ")]";
+        }
+    }
+
+    @Override
+    public List<WebElement> findElements(SearchContext context) {
+        JavascriptExecutor executor = scriptExecutor(context);
+        if (executor == null) {
+            return context.findElements(By.xpath(toXPath(context instanceof WebElement)));
+        }
+        String match = mode == Mode.VALUE ? "value" : mode == Mode.TEXT ? "text" : "partial";
+        // without a root element the script searches the document
+        Object result = context instanceof WebElement ? executor.executeScript(SCRIPT, tag, match, text, context)
+                : executor.executeScript(SCRIPT, tag, match, text);
+        List<WebElement> elements = new ArrayList<>();
+        if (result instanceof List) {
+            for (Object element : (List<?>) result) {
+                elements.add((WebElement) element);
+            }
+        }
+        return elements;
+    }
+
+    /**
+     * @return true if the elements are found with a script in the context,
+     *         false if with XPath
+     */
+    public boolean usesScript(SearchContext context) {
+        return scriptExecutor(context) != null;
+    }
+
+    /**
+     * @return the executor to find the elements with in one script call, or
+     *         null to use XPath
+     */
+    private static JavascriptExecutor scriptExecutor(SearchContext context) {
+        if ("xpath".equalsIgnoreCase(STRATEGY)) {
+            return null;
+        }
+        WebDriver driver = null;
+        if (context instanceof WebDriver) {
+            driver = (WebDriver) context;
+        } else if (context instanceof WrapsDriver) {
+            driver = ((WrapsDriver) context).getWrappedDriver();
+        } else if (context instanceof WrapsElement && ((WrapsElement) context).getWrappedElement() instanceof WrapsDriver) {
+            driver = ((WrapsDriver) ((WrapsElement) context).getWrappedElement()).getWrappedDriver();
+        }
+        if (!(driver instanceof JavascriptExecutor)) {
+            return null;
+        }
+        if ("auto".equalsIgnoreCase(STRATEGY) && !isJavascriptEnabled(driver)) {
+            return null;
+        }
+        return (JavascriptExecutor) driver;
+    }
+
+    private static boolean isJavascriptEnabled(WebDriver driver) {
+        while (driver instanceof WrapsDriver) {
+            driver = ((WrapsDriver) driver).getWrappedDriver();
+        }
+        return !(driver instanceof HtmlUnitDriver) || ((HtmlUnitDriver) driver).isJavascriptEnabled();
+    }
+
+    @Override
+    public String toString() {
+        switch (mode) {
+        case TEXT:
+            return "By." + tag + "WithText: " + text;
+        case PARTIAL_TEXT:
+            return "By." + tag + "WithTextContaining: " + text;
+        default:
+            return "By." + tag + "WithValueContaining: " + text;
+        }
+    }
+}
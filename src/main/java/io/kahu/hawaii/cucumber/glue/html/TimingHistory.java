@@ -0,0 +1,211 @@
+/**
+ * Copyright 2015 Q24
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.kahu.hawaii.cucumber.glue.html;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Durations of waits, keyed by what was waited for, kept across runs in a
+ * local file. Timeouts are derived from the observed durations so that a wait
+ * that normally takes 200 ms does not wait 30 s before failing, while a wait
+ * that is slow but healthy still gets the time it needs. Keys that are not
+ * used for a while, e.g. of steps that were removed, are dropped from the
+ * file.
+ */
+public class TimingHistory {
+
+    /**
+     * Number of samples kept per key; older samples are dropped.
+     */
+    private static final int MAX_SAMPLES = 100;
+
+    /**
+     * Number of samples needed before a timeout is derived from them.
+     */
+    private static final int MIN_SAMPLES = 5;
+
+    private static final String CURRENT_STATE_MARKER = ". Current ";
+
+    private final File file;
+    private final double factor;
+    private final long minTimeout;
+    private final long maxTimeout;
+    private final long maxAge;
+    private final Map<String, LinkedList<Long>> samples = new TreeMap<>();
+    private final Map<String, Long> lastUsed = new HashMap<>();
+
+    /**
+     * @param file
+     *            the history file, read now if it exists and written by
+     *            {@link #save()}
+     * @param factor
+     *            the factor the 99th percentile is multiplied with
+     * @param minTimeout
+     *            lower bound of a derived timeout, in milliseconds
+     * @param maxTimeout
+     *            upper bound of a derived timeout, in milliseconds
+     * @param maxAge
+     *            the milliseconds after which a key that was not used is
+     *            dropped, 0 to keep all keys
+     */
+    public TimingHistory(File file, double factor, long minTimeout, long maxTimeout, long maxAge) {
+        this.file = file;
+        this.factor = factor;
+        this.minTimeout = minTimeout;
+        this.maxTimeout = Math.max(minTimeout, maxTimeout);
+        this.maxAge = maxAge;
+        load();
+    }
+
+    /**
+     * Creates a key for a wait.
+     *
+     * @param helper
+     *            the step or helper that waits, e.g. "waitForLoad"
+     * @param subject
+     *            what is waited for, e.g. a path or locator; its description
+     *            is used, without the current state some conditions include
+     *            in it. It must not change between runs: the description of
+     *            a condition on a found element, for instance, holds the
+     *            session id.
+     */
+    public static String keyOf(String helper, Object subject) {
+        String description = subject == null ? "" : String.valueOf(subject);
+        int currentState = description.indexOf(CURRENT_STATE_MARKER);
+        if (currentState >= 0) {
+            description = description.substring(0, currentState);
+        }
+        return (helper + " " + description).replaceAll("\\s+", " ").trim();
+    }
+
+    public synchronized void record(String key, long millis) {
+        lastUsed.put(key, System.currentTimeMillis());
+        LinkedList<Long> durations = samples.get(key);
+        if (durations == null) {
+            durations = new LinkedList<>();
+            samples.put(key, durations);
+        }
+        durations.addLast(millis);
+        while (durations.size() > MAX_SAMPLES) {
+            durations.removeFirst();
+        }
+    }
+
+    /**
+     * @return the timeout for the given key in milliseconds, derived from
+     *         the 99th percentile of its history, or the default when there
+     *         is not enough history
+     */
+    public synchronized long getTimeout(String key, long defaultTimeout) {
+        lastUsed.put(key, System.currentTimeMillis());
+        LinkedList<Long> durations = samples.get(key);
+        if (durations == null || durations.size() < MIN_SAMPLES) {
+            return defaultTimeout;
+        }
+        long timeout = (long) (percentile(durations, 99) * factor);
+        return Math.max(minTimeout, Math.min(maxTimeout, timeout));
+    }
+
+    /**
+     * @return the given percentile of the durations for the key in
+     *         milliseconds, or -1 if there is no history for it
+     */
+    public synchronized long getPercentile(String key, int percentile) {
+        LinkedList<Long> durations = samples.get(key);
+        return durations == null || durations.isEmpty() ? -1 : percentile(durations, percentile);
+    }
+
+    private static long percentile(List<Long> durations, int percentile) {
+        List<Long> sorted = new ArrayList<>(durations);
+        Collections.sort(sorted);
+        int index = (int) Math.ceil(percentile / 100.0 * sorted.size()) - 1;
+        return sorted.get(Math.max(0, Math.min(sorted.size() - 1, index)));
+    }
+
+    private void load() {
+        if (!file.isFile()) {
+            return;
+        }
+        try (BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                // key, time last used and samples; files of older versions
+                // have no time, their keys count as used now
+                String[] fields = line.split("\t");
+                if (fields.length < 2 || fields[0].isEmpty()) {
+                    continue;
+                }
+                String key = fields[0];
+                for (String duration : fields[fields.length - 1].split(",")) {
+                    try {
+                        record(key, Long.parseLong(duration.trim()));
+                    } catch (NumberFormatException e) {
+                        // ignore, corrupt sample
+                    }
+                }
+                if (fields.length > 2) {
+                    try {
+                        lastUsed.put(key, Long.parseLong(fields[1]));
+                    } catch (NumberFormatException e) {
+                        // ignore, counts as used now
+                    }
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Could not read timing history " + file + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Writes the history to its file.
+     */
+    public synchronized void save() {
+        File parent = file.getAbsoluteFile().getParentFile();
+        if (parent != null) {
+            parent.mkdirs();
+        }
+        try (BufferedWriter writer = Files.newBufferedWriter(file.toPath(), StandardCharsets.UTF_8)) {
+            long now = System.currentTimeMillis();
+            for (Map.Entry<String, LinkedList<Long>> entry : samples.entrySet()) {
+                long used = lastUsed.get(entry.getKey());
+                if (maxAge > 0 && now - used > maxAge) {
+                    continue;
+                }
+                StringBuilder line = new StringBuilder(entry.getKey()).append('\t').append(used).append('\t');
+                for (Long duration : entry.getValue()) {
+                    line.append(duration).append(',');
+                }
+                line.setLength(line.length() - 1);
+                writer.write(line.toString());
+                writer.newLine();
+            }
+        } catch (IOException e) {
+            System.err.println("Could not write timing history " + file + ": " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,143 @@
+/**
+ * Copyright 2015 Q24
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.kahu.hawaii.cucumber.glue.html;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+
+import gherkin.formatter.Formatter;
+import gherkin.formatter.Reporter;
+import gherkin.formatter.model.Background;
+import gherkin.formatter.model.Examples;
+import gherkin.formatter.model.Feature;
+import gherkin.formatter.model.Match;
+import gherkin.formatter.model.Result;
+import gherkin.formatter.model.Scenario;
+import gherkin.formatter.model.ScenarioOutline;
+import gherkin.formatter.model.Step;
+
+/**
+ * Cucumber plugin that records the scenarios, steps and hooks of a run in
+ * the trace of the {@link TraceRecorder}. Register it with
+ * <code>--plugin io.kahu.hawaii.cucumber.glue.html.TraceFormatter</code>
+ * and set test.trace.file.
+ */
+public class TraceFormatter implements Formatter, Reporter {
+
+    private final Deque<String> steps = new ArrayDeque<>();
+    private String scenario;
+    private long scenarioStart;
+    private String step;
+    private long stepStart;
+
+    @Override
+    public void startOfScenarioLifeCycle(Scenario scenario) {
+        this.scenario = scenario.getKeyword() + ": " + scenario.getName();
+        scenarioStart = TraceRecorder.now();
+    }
+
+    @Override
+    public void endOfScenarioLifeCycle(Scenario scenario) {
+        TraceRecorder.complete("scenario", this.scenario, null, scenarioStart, TraceRecorder.now());
+        steps.clear();
+    }
+
+    @Override
+    public void step(Step step) {
+        // steps are formatted before they run, in the order they run
+        steps.add(step.getKeyword() + step.getName());
+    }
+
+    @Override
+    public void match(Match match) {
+        step = steps.isEmpty() ? match.getLocation() : steps.poll();
+        stepStart = TraceRecorder.now();
+    }
+
+    @Override
+    public void result(Result result) {
+        if (step != null) {
+            TraceRecorder.complete("step", step, null, stepStart, TraceRecorder.now());
+            step = null;
+        }
+    }
+
+    @Override
+    public void before(Match match, Result result) {
+        hook("before " + match.getLocation(), result);
+    }
+
+    @Override
+    public void after(Match match, Result result) {
+        hook("after " + match.getLocation(), result);
+    }
+
+    private void hook(String name, Result result) {
+        if (result.getDuration() != null) {
+            long end = TraceRecorder.now();
+            TraceRecorder.complete("hook", name, null, end - result.getDuration() / 1000, end);
+        }
+    }
+
+    @Override
+    public void embedding(String mimeType, byte[] data) {
+    }
+
+    @Override
+    public void write(String text) {
+    }
+
+    @Override
+    public void uri(String uri) {
+    }
+
+    @Override
+    public void syntaxError(String state, String event, List<String> legalEvents, String uri, Integer line) {
+    }
+
+    @Override
+    public void feature(Feature feature) {
+    }
+
+    @Override
+    public void scenarioOutline(ScenarioOutline scenarioOutline) {
+    }
+
+    @Override
+    public void examples(Examples examples) {
+    }
+
+    @Override
+    public void background(Background background) {
+    }
+
+    @Override
+    public void scenario(Scenario scenario) {
+    }
+
+    @Override
+    public void done() {
+    }
+
+    @Override
+    public void close() {
+    }
+
+    @Override
+    public void eof() {
+    }
+}
@@ -0,0 +1,290 @@
+/**
+ * Copyright 2015 Q24
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.kahu.hawaii.cucumber.glue.html;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import com.google.gson.Gson;
+
+/**
+ * Records a timeline of the run in the Chrome trace event format, to load in
+ * chrome://tracing or another trace viewer: spans for scenarios and steps
+ * (recorded by the {@link TraceFormatter} plugin), glue helpers and driver
+ * commands, per thread and tagged with the browser session. Recording is on
+ * when test.trace.file is set. The events are written to the file as they
+ * come, at most test.trace.max.events, and flushed every second; the file is
+ * a json array that is closed when the JVM exits, but trace viewers load it
+ * unclosed too, so a killed run keeps its trace up to the last flush. Events
+ * past the maximum are dropped and counted, in the trace and on stderr. In a
+ * matrix run every profile writes its own file, named after the profile.
+ */
+public final class TraceRecorder {
+
+    private static final File FILE = traceFile();
+    private static final int MAX_EVENTS = Integer.getInteger("test.trace.max.events", 1000000);
+    private static final long FLUSH_INTERVAL = 1000;
+    private static final long ORIGIN_NANOS = System.nanoTime();
+    private static final long ORIGIN_MICROS = System.currentTimeMillis() * 1000;
+    private static final int PID = pid();
+    private static final Object LOCK = new Object();
+    private static final Set<Long> THREADS = new HashSet<>();
+    private static final Gson GSON = new Gson();
+    private static final Span NO_SPAN = new Span(null, null, null, 0);
+    private static Writer writer;
+    private static boolean empty = true;
+    private static int written;
+    private static long dropped;
+    private static long lastFlush;
+
+    static {
+        if (FILE != null) {
+            open();
+            Runtime.getRuntime().addShutdownHook(new Thread(TraceRecorder::close, "trace-recorder"));
+        }
+    }
+
+    private TraceRecorder() {
+    }
+
+    public static boolean isEnabled() {
+        return FILE != null;
+    }
+
+    /**
+     * @return the current time in microseconds, on the clock of the trace
+     */
+    public static long now() {
+        return ORIGIN_MICROS + (System.nanoTime() - ORIGIN_NANOS) / 1000;
+    }
+
+    /**
+     * Starts a span that ends when it is closed, for use in a
+     * try-with-resources block.
+     *
+     * @param category
+     *            e.g. "step", "helper" or "command"
+     * @param session
+     *            the browser session, or null
+     */
+    public static Span span(String category, String name, String session) {
+        return isEnabled() ? new Span(category, name, session, now()) : NO_SPAN;
+    }
+
+    /**
+     * Records a span that has ended.
+     */
+    public static void complete(String category, String name, String session, long startMicros, long endMicros) {
+        if (!isEnabled()) {
+            return;
+        }
+        Thread thread = Thread.currentThread();
+        Event event = new Event();
+        event.name = name;
+        event.cat = category;
+        event.ph = "X";
+        event.ts = startMicros;
+        event.dur = Math.max(0, endMicros - startMicros);
+        event.pid = PID;
+        event.tid = thread.getId();
+        if (session != null) {
+            event.args = new HashMap<>();
+            event.args.put("session", session);
+        }
+        synchronized (LOCK) {
+            if (writer == null) {
+                return;
+            }
+            if (written >= MAX_EVENTS) {
+                if (dropped++ == 0) {
+                    System.err.println("Trace " + FILE + " reached test.trace.max.events (" + MAX_EVENTS + "), later events are dropped");
+                }
+                return;
+            }
+            if (THREADS.add(thread.getId())) {
+                append(metadata("thread_name", thread.getId(), "name", thread.getName()));
+            }
+            append(event);
+            written++;
+            if (System.currentTimeMillis() - lastFlush >= FLUSH_INTERVAL) {
+                flush();
+            }
+        }
+    }
+
+    private static void open() {
+        File parent = FILE.getAbsoluteFile().getParentFile();
+        if (parent != null) {
+            parent.mkdirs();
+        }
+        synchronized (LOCK) {
+            try {
+                writer = Files.newBufferedWriter(FILE.toPath(), StandardCharsets.UTF_8);
+                writer.write("[");
+                String profile = System.getProperty("test.matrix.profile");
+                append(metadata("process_name", 0, "name", profile == null ? "hawaii" : profile));
+                flush();
+            } catch (IOException e) {
+                failed(e);
+            }
+        }
+    }
+
+    /**
+     * Writes an event, or stops the recording when the file can not be
+     * written.
+     */
+    private static void append(Event event) {
+        if (writer == null) {
+            return;
+        }
+        try {
+            writer.write(empty ? "" : ",\n");
+            writer.write(GSON.toJson(event));
+            empty = false;
+        } catch (IOException e) {
+            failed(e);
+        }
+    }
+
+    private static void flush() {
+        if (writer == null) {
+            return;
+        }
+        try {
+            writer.flush();
+            lastFlush = System.currentTimeMillis();
+        } catch (IOException e) {
+            failed(e);
+        }
+    }
+
+    private static void close() {
+        synchronized (LOCK) {
+            if (writer == null) {
+                return;
+            }
+            if (dropped > 0) {
+                System.err.println("Dropped " + dropped + " events of trace " + FILE + " past test.trace.max.events (" + MAX_EVENTS + ")");
+                append(metadata("process_labels", 0, "labels", "dropped " + dropped + " events"));
+            }
+            if (writer == null) {
+                return;
+            }
+            try {
+                writer.write("\n]\n");
+                writer.close();
+            } catch (IOException e) {
+                System.err.println("Could not write trace " + FILE + ": " + e.getMessage());
+            }
+            writer = null;
+        }
+    }
+
+    private static void failed(IOException e) {
+        System.err.println("Could not write trace " + FILE + ", recording stops: " + e.getMessage());
+        try {
+            if (writer != null) {
+                writer.close();
+            }
+        } catch (IOException ignored) {
+            // the first error is reported
+        }
+        writer = null;
+    }
+
+    private static Event metadata(String name, long tid, String arg, String value) {
+        Event event = new Event();
+        event.name = name;
+        event.ph = "M";
+        event.pid = PID;
+        event.tid = tid;
+        event.args = new HashMap<>();
+        event.args.put(arg, value);
+        return event;
+    }
+
+    private static File traceFile() {
+        String file = System.getProperty("test.trace.file");
+        if (file == null) {
+            return null;
+        }
+        String profile = System.getProperty("test.matrix.profile");
+        if (profile != null) {
+            String suffix = "-" + profile.replaceAll("[^A-Za-z0-9_.-]", "_");
+            int dot = file.lastIndexOf('.');
+            file = dot > file.lastIndexOf(File.separatorChar) ? file.substring(0, dot) + suffix + file.substring(dot) : file + suffix;
+        }
+        return new File(file);
+    }
+
+    private static int pid() {
+        // "pid@host" on the common JVMs
+        String name = ManagementFactory.getRuntimeMXBean().getName();
+        try {
+            return Integer.parseInt(name.substring(0, name.indexOf('@')));
+        } catch (RuntimeException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * A span that is recorded when it is closed.
+     */
+    public static final class Span implements AutoCloseable {
+
+        private final String category;
+        private final String name;
+        private final String session;
+        private final long start;
+
+        private Span(String category, String name, String session, long start) {
+            this.category = category;
+            this.name = name;
+            this.session = session;
+            this.start = start;
+        }
+
+        @Override
+        public void close() {
+            if (name != null) {
+                complete(category, name, session, start, now());
+            }
+        }
+    }
+
+    /**
+     * A trace event, as written to the file.
+     */
+    private static class Event {
+        private String name;
+        private String cat;
+        private String ph;
+        private Long ts;
+        private Long dur;
+        private int pid;
+        private long tid;
+        private Map<String, Object> args;
+    }
+}
@@ -0,0 +1,61 @@
+/**
+ * Copyright 2015 Q24
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.kahu.hawaii.cucumber.glue.html;
+
+import java.io.IOException;
+
+import org.openqa.selenium.WebDriver;
+import org.openqa.selenium.remote.Command;
+import org.openqa.selenium.remote.CommandExecutor;
+import org.openqa.selenium.remote.RemoteWebDriver;
+import org.openqa.selenium.remote.Response;
+
+/**
+ * Command executor that records every driver command as a span in the trace
+ * of the {@link TraceRecorder}.
+ */
+public class TracingCommandExecutor implements CommandExecutor {
+
+    private final CommandExecutor delegate;
+
+    public TracingCommandExecutor(CommandExecutor delegate) {
+        this.delegate = delegate;
+    }
+
+    /**
+     * Traces the commands of a driver from now on.
+     *
+     * @return true if the driver is traced; only drivers that talk to their
+     *         browser through a command executor can be
+     */
+    public static boolean install(WebDriver driver) {
+        if (!(driver instanceof RemoteWebDriver)) {
+            return false;
+        }
+        RemoteWebDriver remoteDriver = (RemoteWebDriver) driver;
+        CommandExecutors.replace(remoteDriver, new TracingCommandExecutor(remoteDriver.getCommandExecutor()));
+        return true;
+    }
+
+    @Override
+    @SuppressWarnings("try")
+    public Response execute(Command command) throws IOException {
+        String session = command.getSessionId() == null ? null : command.getSessionId().toString();
+        try (TraceRecorder.Span span = TraceRecorder.span("command", command.getName(), session)) {
+            return delegate.execute(command);
+        }
+    }
+}
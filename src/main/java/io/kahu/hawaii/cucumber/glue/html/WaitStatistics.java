@@ -0,0 +1,144 @@
+/**
+ * Copyright 2015 Q24
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.kahu.hawaii.cucumber.glue.html;
+
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * Keeps track of how long each {@link ConditionKind} takes to become true and
+ * derives a polling schedule from it: poll fast while the condition is
+ * expected to come true soon, back off once it takes longer than usual.
+ */
+public class WaitStatistics {
+
+    /**
+     * Weight of a new sample in the moving average.
+     */
+    private static final double SMOOTHING = 0.2;
+
+    /**
+     * Upper bound of the first poll interval, in milliseconds.
+     */
+    private static final long MAX_INITIAL_INTERVAL = 50;
+
+    /**
+     * Lower bound of the interval cap, in milliseconds.
+     */
+    private static final long MIN_INTERVAL_CAP = 100;
+
+    private final long minInterval;
+    private final long maxInterval;
+    private final double backoff;
+    private final Map<ConditionKind, Entry> entries = new EnumMap<>(ConditionKind.class);
+
+    public WaitStatistics(long minInterval, long maxInterval, double backoff) {
+        this.minInterval = Math.max(1, minInterval);
+        this.maxInterval = Math.max(this.minInterval, maxInterval);
+        this.backoff = backoff;
+        for (ConditionKind kind : ConditionKind.values()) {
+            entries.put(kind, new Entry());
+        }
+    }
+
+    /**
+     * Creates a sleeper that follows the current schedule for the given kind
+     * of condition.
+     */
+    public AdaptiveSleeper newSleeper(ConditionKind kind) {
+        Entry entry = entries.get(kind);
+        synchronized (entry) {
+            long initial = minInterval;
+            long cap = maxInterval;
+            if (entry.count > 0) {
+                initial = clamp((long) (entry.average / 8), minInterval, Math.max(minInterval, MAX_INITIAL_INTERVAL));
+                cap = clamp((long) (entry.average / 2), Math.max(initial, MIN_INTERVAL_CAP), maxInterval);
+            }
+            return new AdaptiveSleeper(initial, cap, backoff);
+        }
+    }
+
+    /**
+     * Records a wait that ended because its condition became true.
+     *
+     * @param kind
+     *            the kind of condition waited for
+     * @param millis
+     *            the time it took for the condition to become true
+     * @param polls
+     *            the number of times the condition was evaluated
+     */
+    public void recordSuccess(ConditionKind kind, long millis, int polls) {
+        Entry entry = entries.get(kind);
+        synchronized (entry) {
+            entry.average = entry.count == 0 ? millis : entry.average + SMOOTHING * (millis - entry.average);
+            entry.count++;
+            entry.polls += polls;
+            entry.max = Math.max(entry.max, millis);
+        }
+    }
+
+    /**
+     * Records a wait that ended in a timeout. Timeouts do not influence the
+     * schedule, as they say nothing about how long the condition takes.
+     */
+    public void recordTimeout(ConditionKind kind, int polls) {
+        Entry entry = entries.get(kind);
+        synchronized (entry) {
+            entry.timeouts++;
+            entry.polls += polls;
+        }
+    }
+
+    /**
+     * @return the moving average of the time to become true, in milliseconds,
+     *         or -1 if no wait of this kind succeeded yet
+     */
+    public long getAverageMillis(ConditionKind kind) {
+        Entry entry = entries.get(kind);
+        synchronized (entry) {
+            return entry.count == 0 ? -1 : (long) entry.average;
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder("wait statistics:");
+        for (Map.Entry<ConditionKind, Entry> mapEntry : entries.entrySet()) {
+            Entry entry = mapEntry.getValue();
+            synchronized (entry) {
+                if (entry.count + entry.timeouts == 0) {
+                    continue;
+                }
+                builder.append(String.format(" %s[waits=%d, timeouts=%d, polls=%d, avg=%dms, max=%dms]", mapEntry.getKey(), entry.count, entry.timeouts,
+                        entry.polls, (long) entry.average, entry.max));
+            }
+        }
+        return builder.toString();
+    }
+
+    private static long clamp(long value, long min, long max) {
+        return Math.max(min, Math.min(max, value));
+    }
+
+    private static class Entry {
+        private double average;
+        private long count;
+        private long timeouts;
+        private long polls;
+        private long max;
+    }
+}
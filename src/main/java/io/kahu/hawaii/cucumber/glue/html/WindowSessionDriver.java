@@ -0,0 +1,376 @@
+/**
+ * Copyright 2015 Q24
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.kahu.hawaii.cucumber.glue.html;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.openqa.selenium.WebDriver;
+import org.openqa.selenium.WebDriverException;
+import org.openqa.selenium.remote.BeanToJsonConverter;
+import org.openqa.selenium.remote.Command;
+import org.openqa.selenium.remote.CommandExecutor;
+import org.openqa.selenium.remote.DriverCommand;
+import org.openqa.selenium.remote.JsonToBeanConverter;
+import org.openqa.selenium.remote.RemoteWebDriver;
+import org.openqa.selenium.remote.Response;
+import org.openqa.selenium.remote.SessionId;
+
+/**
+ * Driver for a logical browser session that lives in its own window of a
+ * browser shared by all sessions of this JVM, so scenarios do not each start
+ * a browser process. Every command of the session is sent to its window:
+ * when another session used the browser last, the glue switches windows
+ * first, and swaps the cookies and local storage of the two sessions, so
+ * sessions do not see each other's state. The browser only shows the
+ * cookies and storage of the origin of the page it is on, so they are
+ * swapped for every origin the session visited with get or was on when it
+ * was swapped out; the window briefly visits /robots.txt of each origin
+ * other than the one of its page. Cookies of origins a session only passed
+ * through in redirects are not seen. Quitting the session closes its
+ * window; the shared browser is quit when the JVM exits.
+ * <p>
+ * The shared browser has to talk to its driver through a command executor,
+ * so HtmlUnit can not host window sessions.
+ */
+public class WindowSessionDriver extends RemoteWebDriver {
+
+    private static Host host;
+    private final Host sessionHost;
+
+    /**
+     * Opens a window session in the shared browser, starting the browser
+     * with the factory if there is none yet.
+     */
+    public static synchronized WindowSessionDriver open(Callable<WebDriver> browserFactory) throws Exception {
+        if (host == null || host.retiring) {
+            WebDriver browser = browserFactory.call();
+            if (!(browser instanceof RemoteWebDriver)) {
+                browser.quit();
+                throw new IllegalStateException(browser.getClass().getSimpleName() + " can not host window sessions");
+            }
+            host = new Host((RemoteWebDriver) browser);
+            Runtime.getRuntime().addShutdownHook(new Thread(host::quit, "window-sessions"));
+        }
+        try {
+            return new WindowSessionDriver(new WindowCommandExecutor(host));
+        } catch (WebDriverException e) {
+            // the browser is gone, start a new one for the next session
+            host.quit();
+            host = null;
+            throw e;
+        }
+    }
+
+    private WindowSessionDriver(WindowCommandExecutor executor) {
+        super(executor, executor.host.browser.getCapabilities());
+        this.sessionHost = executor.host;
+    }
+
+    /**
+     * @return the shared browser the window of this session is in
+     */
+    public RemoteWebDriver getBrowser() {
+        return sessionHost.browser;
+    }
+
+    /**
+     * Makes the next sessions open in a new browser. The shared browser of
+     * this session is quit when the last of its windows closes.
+     */
+    public void retireBrowser() {
+        sessionHost.retiring = true;
+    }
+
+    /**
+     * A browser shared by window sessions. The window the browser started
+     * with is kept open, because closing the last window ends the browser.
+     */
+    private static class Host {
+
+        private final RemoteWebDriver browser;
+        private final CommandExecutor executor;
+        private final SessionId sessionId;
+        private final String homeWindow;
+        private final Map<String, Object> capabilities;
+        private final Set<String> windows = new HashSet<>();
+        private WindowCommandExecutor active;
+        private volatile boolean retiring;
+
+        @SuppressWarnings("unchecked")
+        Host(RemoteWebDriver browser) {
+            this.browser = browser;
+            this.executor = browser.getCommandExecutor();
+            this.sessionId = browser.getSessionId();
+            this.homeWindow = browser.getWindowHandle();
+            // as the driver sends them, e.g. the platform as text
+            this.capabilities = new JsonToBeanConverter().convert(Map.class, new BeanToJsonConverter().convert(browser.getCapabilities().asMap()));
+        }
+
+        Object execute(String name, Map<String, ?> parameters) throws IOException {
+            Response response = executor.execute(new Command(sessionId, name, parameters));
+            if (response.getStatus() != null && response.getStatus() != 0) {
+                throw new WebDriverException(name + " failed in the shared browser: " + response.getValue());
+            }
+            return response.getValue();
+        }
+
+        Object executeScript(String script, Object... args) throws IOException {
+            Map<String, Object> parameters = new HashMap<>();
+            parameters.put("script", script);
+            parameters.put("args", args);
+            return execute(DriverCommand.EXECUTE_SCRIPT, parameters);
+        }
+
+        String getCurrentUrl() throws IOException {
+            return (String) execute(DriverCommand.GET_CURRENT_URL, Collections.<String, Object> emptyMap());
+        }
+
+        void get(String url) throws IOException {
+            execute(DriverCommand.GET, Collections.singletonMap("url", url));
+        }
+
+        void switchTo(String window) throws IOException {
+            execute(DriverCommand.SWITCH_TO_WINDOW, Collections.singletonMap("name", window));
+        }
+
+        @SuppressWarnings("unchecked")
+        String openWindow() throws IOException {
+            Set<String> before = new HashSet<>((List<String>) execute(DriverCommand.GET_WINDOW_HANDLES, Collections.<String, Object> emptyMap()));
+            executeScript("window.open('about:blank', '_blank');");
+            List<String> after = (List<String>) execute(DriverCommand.GET_WINDOW_HANDLES, Collections.<String, Object> emptyMap());
+            for (String window : after) {
+                if (!before.contains(window)) {
+                    windows.add(window);
+                    return window;
+                }
+            }
+            throw new WebDriverException("The shared browser did not open a window");
+        }
+
+        void quit() {
+            try {
+                browser.quit();
+            } catch (WebDriverException e) {
+                // already gone
+            }
+        }
+    }
+
+    /**
+     * Sends the commands of one session to its window in the shared browser.
+     */
+    private static class WindowCommandExecutor implements CommandExecutor {
+
+        private static final String SAVE_STORAGE_SCRIPT = "try { var s = {}; for (var i = 0; i < localStorage.length; i++) {"
+                + " var k = localStorage.key(i); s[k] = localStorage.getItem(k); } localStorage.clear(); return JSON.stringify(s); }"
+                + " catch (e) { return null; }";
+        private static final String RESTORE_STORAGE_SCRIPT = "try { var s = JSON.parse(arguments[0]); for (var k in s) { localStorage.setItem(k, s[k]); } }"
+                + " catch (e) { }";
+        private static final Pattern ORIGIN = Pattern.compile("(https?://[^/?#]+).*", Pattern.CASE_INSENSITIVE);
+        // a page of an origin that does not need the session to load
+        private static final String STATE_PAGE = "/robots.txt";
+
+        private final Host host;
+        private String window;
+        private final Set<String> origins = new LinkedHashSet<>();
+        private final Map<String, State> saved = new LinkedHashMap<>();
+        private String savedPage;
+
+        WindowCommandExecutor(Host host) {
+            this.host = host;
+        }
+
+        @Override
+        public Response execute(Command command) throws IOException {
+            synchronized (host) {
+                Response response = new Response(host.sessionId);
+                if (DriverCommand.NEW_SESSION.equals(command.getName())) {
+                    window = host.openWindow();
+                    activate();
+                    response.setStatus(0);
+                    response.setValue(host.capabilities);
+                    return response;
+                }
+                activate();
+                if (DriverCommand.QUIT.equals(command.getName())) {
+                    // leaves nothing of the session behind for the next ones
+                    save();
+                    saved.clear();
+                    host.execute(DriverCommand.CLOSE, Collections.<String, Object> emptyMap());
+                    host.windows.remove(window);
+                    host.active = null;
+                    host.switchTo(host.homeWindow);
+                    if (host.retiring && host.windows.isEmpty()) {
+                        host.quit();
+                    }
+                    response.setStatus(0);
+                    return response;
+                }
+                response = host.executor.execute(new Command(host.sessionId, command.getName(), command.getParameters()));
+                if (DriverCommand.GET.equals(command.getName())) {
+                    visited(String.valueOf(command.getParameters().get("url")));
+                }
+                if (DriverCommand.GET_WINDOW_HANDLES.equals(command.getName()) && response.getValue() instanceof List) {
+                    response.setValue(ownWindows((List<?>) response.getValue()));
+                }
+                return response;
+            }
+        }
+
+        /**
+         * Makes the window of this session the current one, swapping the
+         * cookies and storage of the session that used the browser last for
+         * the ones of this session.
+         */
+        private void activate() throws IOException {
+            WindowCommandExecutor previous = host.active;
+            if (previous == this) {
+                return;
+            }
+            if (previous != null) {
+                // still in the window of the previous session
+                previous.save();
+                GlueMetrics.increment("window.sessions.swaps");
+            }
+            host.switchTo(window);
+            host.active = this;
+            restore();
+        }
+
+        /**
+         * Takes the cookies and storage of this session out of the browser,
+         * origin by origin, while its window is the current one.
+         */
+        @SuppressWarnings("unchecked")
+        private void save() throws IOException {
+            savedPage = host.getCurrentUrl();
+            visited(savedPage);
+            String here = originOf(savedPage);
+            List<String> order = new ArrayList<>(origins);
+            // the origin of the page first, it needs no visit
+            if (order.remove(here)) {
+                order.add(0, here);
+            }
+            for (String origin : order) {
+                if (!origin.equals(here)) {
+                    host.get(origin + STATE_PAGE);
+                    here = originOf(host.getCurrentUrl());
+                    if (!origin.equals(here)) {
+                        System.err.println("Window session state of " + origin + " left in the browser, " + origin + STATE_PAGE + " went to " + here);
+                        continue;
+                    }
+                }
+                State state = new State();
+                state.cookies = (List<Object>) host.execute(DriverCommand.GET_ALL_COOKIES, Collections.<String, Object> emptyMap());
+                host.execute(DriverCommand.DELETE_ALL_COOKIES, Collections.<String, Object> emptyMap());
+                state.storage = (String) host.executeScript(SAVE_STORAGE_SCRIPT);
+                saved.put(origin, state);
+            }
+        }
+
+        /**
+         * Puts the saved cookies and storage of this session back, and
+         * returns its window to its page if it had to visit other origins.
+         *
+         * @throws WebDriverException
+         *             If a cookie can not be restored, as the session would
+         *             lose e.g. its login
+         */
+        private void restore() throws IOException {
+            if (saved.isEmpty()) {
+                return;
+            }
+            String current = host.getCurrentUrl();
+            String here = originOf(current);
+            boolean moved = !current.equals(savedPage);
+            for (Map.Entry<String, State> entry : saved.entrySet()) {
+                String origin = entry.getKey();
+                if (!origin.equals(here)) {
+                    host.get(origin + STATE_PAGE);
+                    here = originOf(host.getCurrentUrl());
+                    moved = true;
+                    if (!origin.equals(here)) {
+                        throw new WebDriverException("Could not restore the cookies of a window session on " + origin + ", " + origin + STATE_PAGE
+                                + " went to " + here);
+                    }
+                }
+                for (Object cookie : entry.getValue().cookies) {
+                    try {
+                        host.execute(DriverCommand.ADD_COOKIE, Collections.singletonMap("cookie", cookie));
+                    } catch (WebDriverException e) {
+                        throw new WebDriverException("Could not restore a cookie of a window session on " + origin + ": " + cookie, e);
+                    }
+                }
+                if (entry.getValue().storage != null) {
+                    host.executeScript(RESTORE_STORAGE_SCRIPT, entry.getValue().storage);
+                }
+            }
+            saved.clear();
+            if (moved && originOf(savedPage) != null) {
+                host.get(savedPage);
+            }
+        }
+
+        private void visited(String url) {
+            String origin = originOf(url);
+            if (origin != null) {
+                origins.add(origin);
+            }
+        }
+
+        /**
+         * @return the scheme, host and port of an http url, null for other
+         *         urls such as about:blank
+         */
+        private static String originOf(String url) {
+            Matcher matcher = url == null ? null : ORIGIN.matcher(url);
+            return matcher != null && matcher.matches() ? matcher.group(1).toLowerCase() : null;
+        }
+
+        /**
+         * @return the windows without the windows of the other sessions
+         */
+        private List<Object> ownWindows(List<?> windows) {
+            List<Object> own = new ArrayList<>();
+            for (Object handle : windows) {
+                if (handle.equals(window) || !host.windows.contains(handle) && !handle.equals(host.homeWindow)) {
+                    own.add(handle);
+                }
+            }
+            return own;
+        }
+    }
+
+    /**
+     * The cookies and local storage of a session on one origin.
+     */
+    private static class State {
+        private List<Object> cookies;
+        private String storage;
+    }
+}
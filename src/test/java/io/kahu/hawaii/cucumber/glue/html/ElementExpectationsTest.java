@@ -0,0 +1,119 @@
+/**
+ * Copyright 2015 Q24
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.kahu.hawaii.cucumber.glue.html;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import cucumber.api.java.en.Then;
+
+/**
+ * The expectations of the step grammar, looked up in the table.
+ */
+public class ElementExpectationsTest {
+
+    private static TestPages pages;
+    private HtmlSteps steps;
+    private TestScenario scenario;
+
+    @BeforeClass
+    public static void startPages() throws Exception {
+        pages = new TestPages().page("/page.html", "<html><body><p id='empty'></p><p id='full'>Welcome</p></body></html>").start();
+    }
+
+    @AfterClass
+    public static void stopPages() {
+        pages.stop();
+    }
+
+    @Before
+    public void visitPage() throws Throwable {
+        System.setProperty("test.base.url", pages.getUrl());
+        System.setProperty("test.timeout", "1");
+        steps = new HtmlSteps();
+        scenario = new TestScenario("@web-lite");
+        steps.beforeScenario(scenario);
+        steps.I_visit_page("/page.html");
+    }
+
+    @After
+    public void endScenario() {
+        steps.afterScenario(scenario);
+        System.clearProperty("test.base.url");
+        System.clearProperty("test.timeout");
+    }
+
+    @Test
+    public void matchesTheExpectationsOfTheTableInTheStepDefinition() throws Exception {
+        Pattern step = Pattern.compile(HtmlSteps.class.getMethod("page_element_should", String.class, String.class, String.class)
+                .getAnnotation(Then.class).value());
+        Matcher matcher = step.matcher("page element with id \"full\" should contain text \"\"");
+        assertTrue(matcher.matches());
+        assertEquals("contain text \"\"", matcher.group(3));
+        // undefined, so a dry run reports it
+        assertFalse(step.matcher("page element \"full\" should contian text \"Welcome\"").matches());
+        for (String phrase : ElementExpectations.getPhrases()) {
+            assertTrue(phrase, step.matcher("page element \"full\" should " + phrase.replace("...", "x")).matches());
+        }
+    }
+
+    @Test
+    public void looksUpAnExpectationWithAnEmptyArgument() throws Throwable {
+        assertTrue(ElementExpectations.isKnown("contain text \"\""));
+        ElementExpectations.check(steps, target("empty"), "contain text \"\"");
+        try {
+            ElementExpectations.check(steps, target("full"), "not contain text \"\"");
+        } catch (AssertionError e) {
+            assertEquals("element with id \"full\" did contain text \"\"; visible content of element was: Welcome", e.getMessage());
+            return;
+        }
+        fail("every text contains the empty text");
+    }
+
+    @Test
+    public void looksUpAnExpectationWithAnArgument() throws Throwable {
+        ElementExpectations.check(steps, target("full"), "contain text \"Welcome\"");
+        ElementExpectations.check(steps, target("full"), "be visible");
+        ElementExpectations.check(steps, target("missing"), "not exist");
+    }
+
+    @Test
+    public void failsOnAnUnknownExpectation() throws Throwable {
+        assertFalse(ElementExpectations.isKnown("contian text \"Welcome\""));
+        try {
+            ElementExpectations.check(steps, target("full"), "contian text \"Welcome\"");
+        } catch (AssertionError e) {
+            assertTrue(e.getMessage(), e.getMessage().startsWith("unknown expectation \"contian text \"Welcome\"\" of element with id \"full\""));
+            return;
+        }
+        fail("the expectation is not in the table");
+    }
+
+    private static ElementTarget target(String id) {
+        return new ElementTarget(ElementTarget.Type.ID, id);
+    }
+}
@@ -0,0 +1,107 @@
+/**
+ * Copyright 2015 Q24
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.kahu.hawaii.cucumber.glue.html;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.openqa.selenium.By;
+import org.openqa.selenium.WebElement;
+import org.openqa.selenium.htmlunit.HtmlUnitDriver;
+
+/**
+ * The locators the step grammar builds from a target and a class name.
+ */
+public class ElementTargetTest {
+
+    private static final String HAS_X = "[contains(concat(' ', normalize-space(@class), ' '), ' x ')]";
+
+    private static TestPages pages;
+    private static HtmlUnitDriver driver;
+
+    @BeforeClass
+    public static void startPages() throws Exception {
+        pages = new TestPages().page("/page.html", "<html><body><p id='a' class='a'><span class='x'>in a</span></p><p id='b' class='b y'></p>"
+                + "<span class='x'>outside</span></body></html>").start();
+        driver = new HtmlUnitDriver();
+        driver.get(pages.getUrl() + "/page.html");
+    }
+
+    @AfterClass
+    public static void stopPages() {
+        driver.quit();
+        pages.stop();
+    }
+
+    @Test
+    public void locatesById() {
+        ElementTarget target = new ElementTarget(ElementTarget.Type.of(null), "a");
+        assertEquals(By.id("a"), target.by());
+        assertEquals(By.cssSelector("#a .x"), target.descendantWithClassName("x"));
+        assertEquals(By.cssSelector("#a.x"), target.withClassName("x"));
+    }
+
+    @Test
+    public void escapesIdsAndClassNamesInSelectors() {
+        ElementTarget target = new ElementTarget(ElementTarget.Type.ID, "1st.item");
+        assertEquals(By.cssSelector("#\\31 st\\.item .a\\:b"), target.descendantWithClassName("a:b"));
+        assertEquals(By.cssSelector(".-\\32 col.x"), new ElementTarget(ElementTarget.Type.CLASS_NAME, "-2col").withClassName("x"));
+    }
+
+    @Test
+    public void appendsToEverySelectorOfAList() {
+        ElementTarget target = new ElementTarget(ElementTarget.Type.CSS_SELECTOR, ".a, .b");
+        assertEquals(By.cssSelector(".a .x, .b .x"), target.descendantWithClassName("x"));
+        assertEquals(By.cssSelector(".a.x, .b.x"), target.withClassName("x"));
+        assertTexts(Arrays.asList("in a"), target.descendantWithClassName("x"));
+        assertEquals(1, driver.findElements(target.withClassName("y")).size());
+    }
+
+    @Test
+    public void splitsSelectorListsOnlyOnTheirOwnCommas() {
+        assertEquals(Arrays.asList("p:not(.a, .b)", " [title='c,d']", " a[href=\"e,f\"]", " .g\\,h"),
+                ElementTarget.splitSelectorList("p:not(.a, .b), [title='c,d'], a[href=\"e,f\"], .g\\,h"));
+    }
+
+    @Test
+    public void keepsAnXPathUnionTogether() {
+        ElementTarget target = new ElementTarget(ElementTarget.Type.XPATH_EXPRESSION, "//p[@id='a'] | //p[@id='b']");
+        assertEquals(By.xpath("(//p[@id='a'] | //p[@id='b'])//*" + HAS_X), target.descendantWithClassName("x"));
+        assertEquals(By.xpath("(//p[@id='a'] | //p[@id='b'])" + HAS_X), target.withClassName("x"));
+        assertTexts(Arrays.asList("in a"), target.descendantWithClassName("x"));
+        assertEquals(1, driver.findElements(target.withClassName("y")).size());
+    }
+
+    @Test
+    public void quotesClassNamesInXPath() {
+        ElementTarget target = new ElementTarget(ElementTarget.Type.XPATH_EXPRESSION, "//p");
+        assertEquals(By.xpath("(//p)[contains(concat(' ', normalize-space(@class), ' '), \" it's \")]"), target.withClassName("it's"));
+        assertEquals(0, driver.findElements(target.withClassName("it's")).size());
+    }
+
+    private static void assertTexts(List<String> texts, By by) {
+        List<WebElement> elements = driver.findElements(by);
+        assertEquals(texts.size(), elements.size());
+        for (int i = 0; i < texts.size(); i++) {
+            assertEquals(texts.get(i), elements.get(i).getText());
+        }
+    }
+}
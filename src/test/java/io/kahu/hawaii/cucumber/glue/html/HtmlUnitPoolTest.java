@@ -0,0 +1,61 @@
+/**
+ * Copyright 2015 Q24
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.kahu.hawaii.cucumber.glue.html;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.openqa.selenium.htmlunit.HtmlUnitDriver;
+
+/**
+ * Pooled HtmlUnit drivers, with scripts on.
+ */
+public class HtmlUnitPoolTest {
+
+    private static TestPages pages;
+
+    @BeforeClass
+    public static void startPages() throws Exception {
+        pages = new TestPages().page("/page.html", "<html><body>page</body></html>").start();
+        System.setProperty("test.htmlunit.javascript", "true");
+    }
+
+    @AfterClass
+    public static void stopPages() {
+        pages.stop();
+    }
+
+    @Test
+    public void clearsTheStorageOfADriverThatGoesBackToThePool() {
+        HtmlUnitDriver first = HtmlUnitPool.acquire();
+        first.get(pages.getUrl() + "/page.html");
+        first.executeScript("localStorage.setItem('token', 'secret'); sessionStorage.setItem('token', 'secret'); document.cookie = 'id=1';");
+        first.quit();
+
+        HtmlUnitDriver second = HtmlUnitPool.acquire();
+        try {
+            assertSame(first, second);
+            second.get(pages.getUrl() + "/page.html");
+            assertEquals(0L, second.executeScript("return localStorage.length + sessionStorage.length;"));
+            assertEquals("", second.executeScript("return document.cookie;"));
+        } finally {
+            second.quit();
+        }
+    }
+}
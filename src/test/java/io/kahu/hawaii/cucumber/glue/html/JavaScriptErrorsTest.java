@@ -0,0 +1,82 @@
+/**
+ * Copyright 2015 Q24
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.kahu.hawaii.cucumber.glue.html;
+
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * The JavaScript errors of pages, collected with the buffer in the page on
+ * a pooled HtmlUnit driver, which has no browser log.
+ */
+public class JavaScriptErrorsTest {
+
+    private static TestPages pages;
+
+    @BeforeClass
+    public static void startPages() throws Exception {
+        pages = new TestPages()
+                .page("/first.html", "<html><body><a id='next' href='/second.html'>next</a>"
+                        + "<button id='fail' onclick=\"console.error('error on the first page')\">fail</button></body></html>")
+                .page("/second.html", "<html><body>"
+                        + "<button id='fail' onclick=\"console.error('error on the second page')\">fail</button></body></html>")
+                .start();
+        System.setProperty("test.htmlunit.javascript", "true");
+    }
+
+    @AfterClass
+    public static void stopPages() {
+        pages.stop();
+    }
+
+    @Before
+    public void reportErrors() {
+        System.setProperty("test.base.url", pages.getUrl());
+        System.setProperty("test.javascript.errors", "report");
+    }
+
+    @After
+    public void clearProperties() {
+        System.clearProperty("test.base.url");
+        System.clearProperty("test.javascript.errors");
+    }
+
+    @Test
+    public void reportsTheErrorsOfPagesBeforeAndAfterAClick() throws Throwable {
+        HtmlSteps steps = new HtmlSteps();
+        TestScenario scenario = new TestScenario("@web-lite");
+        steps.beforeScenario(scenario);
+        try {
+            steps.I_visit_page("/first.html");
+            steps.I_click_on_button("fail");
+            // opens the second page, which ends the buffer of the first
+            steps.I_click_on_link("next");
+            steps.I_click_on_button("fail");
+        } finally {
+            steps.afterScenario(scenario);
+        }
+        List<String> written = scenario.getWritten();
+        assertTrue(written.toString(), written.contains("javascript error: console.error: error on the first page"));
+        assertTrue(written.toString(), written.contains("javascript error: console.error: error on the second page"));
+    }
+}
@@ -0,0 +1,101 @@
+/**
+ * Copyright 2015 Q24
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.kahu.hawaii.cucumber.glue.html;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.function.Supplier;
+
+import org.openqa.selenium.By;
+import org.openqa.selenium.WebDriver;
+import org.openqa.selenium.WebDriverException;
+import org.openqa.selenium.WebElement;
+import org.openqa.selenium.internal.WrapsDriver;
+
+/**
+ * Compares the strategies of the {@link TextLocator} with the XPath
+ * expressions the steps used to build, on a generated page with many
+ * elements, in the browser configured with the test.* properties.
+ * <p>
+ * Usage: <code>LocatorBenchmark [elements] [iterations]</code>, by default
+ * 5000 elements and 20 iterations.
+ */
+public final class LocatorBenchmark {
+
+    private static final String TARGET = "Don't save";
+
+    private LocatorBenchmark() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        int elements = args.length > 0 ? Integer.parseInt(args[0]) : 5000;
+        int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+        File page = createPage(elements);
+        HtmlSteps steps = new HtmlSteps();
+        steps.beforeScenario();
+        WebDriver driver = steps.getWebDriver();
+        try {
+            driver.get(page.toURI().toString());
+            String last = "Button " + (elements - 1);
+            TextLocator locator = TextLocator.buttonWithText(last);
+            System.out.println(elements + " elements, " + iterations + " iterations, " + driver.getClass().getSimpleName());
+            time("xpath as built before", iterations, () -> driver.findElements(By.xpath("//button[text()='" + last + "']")));
+            time("escaped xpath", iterations, () -> driver.findElements(By.xpath(locator.toXPath(false))));
+            String strategy = locator.usesScript(driver) ? "script" : "xpath";
+            time("text locator (" + strategy + ")", iterations, () -> locator.findElements(driver));
+            time("contains, xpath as built before", iterations, () -> driver.findElements(By.xpath("//button[contains(text(), '" + last + "')]")));
+            time("contains, text locator (" + strategy + ")", iterations, () -> TextLocator.buttonWithTextContaining(last).findElements(driver));
+            try {
+                driver.findElements(By.xpath("//button[text()='" + TARGET + "']"));
+                System.out.println("apostrophe, xpath as built before: found");
+            } catch (WebDriverException e) {
+                System.out.println("apostrophe, xpath as built before: " + e.getClass().getSimpleName());
+            }
+            System.out.println("apostrophe, text locator: " + TextLocator.buttonWithText(TARGET).findElements(driver).size() + " found");
+        } finally {
+            DriverReaper.quit(((WrapsDriver) driver).getWrappedDriver());
+            page.delete();
+        }
+    }
+
+    private static void time(String name, int iterations, Supplier<List<WebElement>> lookup) {
+        // warm up, and check the lookup finds the element
+        int found = lookup.get().size();
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            lookup.get();
+        }
+        double millis = (System.nanoTime() - start) / 1e6 / iterations;
+        System.out.println(String.format("%-35s %8.2f ms (%d found)", name, millis, found));
+    }
+
+    private static File createPage(int elements) throws IOException {
+        File page = File.createTempFile("locator-benchmark", ".html");
+        try (Writer writer = Files.newBufferedWriter(page.toPath(), StandardCharsets.UTF_8)) {
+            writer.write("<html><body>");
+            for (int i = 0; i < elements; i++) {
+                writer.write("<div class=\"row\"><span>Row " + i + "</span><input type=\"text\" value=\"Value " + i + "\"><button>Button " + i
+                        + "</button></div>\n");
+            }
+            writer.write("<button>" + TARGET.replace("'", "&#39;") + "</button></body></html>");
+        }
+        return page;
+    }
+}
@@ -0,0 +1,55 @@
+/**
+ * Copyright 2015 Q24
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.kahu.hawaii.cucumber.glue.html;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+/**
+ * Page timings against a baseline of an earlier run.
+ */
+public class PagePerformanceTest {
+
+    @Test
+    public void comparesPagesOnTheirPathWhateverTheHostOfTheRun() throws Exception {
+        File results = File.createTempFile("performance", ".txt");
+        results.delete();
+        try {
+            // an earlier run, e.g. against a stub server on another port
+            PagePerformance earlier = new PagePerformance(results, null, 20);
+            for (long load : Arrays.asList(90L, 100L, 110L)) {
+                earlier.record(new PageTiming("/account", 10, 50, load, 4));
+            }
+            assertTrue(new String(Files.readAllBytes(results.toPath()), StandardCharsets.UTF_8).startsWith("/account\t"));
+
+            PagePerformance run = new PagePerformance(null, results, 20);
+            assertEquals(100, run.getBaselineLoad("/account"));
+            assertFalse(run.isRegression(new PageTiming("/account", 10, 50, 120, 4)));
+            assertTrue(run.isRegression(new PageTiming("/account", 10, 50, 121, 4)));
+            assertEquals(-1, run.getBaselineLoad("/other"));
+        } finally {
+            results.delete();
+        }
+    }
+}
@@ -0,0 +1,116 @@
+/**
+ * Copyright 2015 Q24
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.kahu.hawaii.cucumber.glue.html;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.nio.file.Files;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * A recording of the commands of a scenario, replayed by the steps of the
+ * scenario without a browser.
+ */
+public class ReplayWebDriverTest {
+
+    private static TestPages pages;
+    private static TestHub hub;
+    private static File recording;
+
+    @BeforeClass
+    public static void recordScenario() throws Throwable {
+        pages = new TestPages().page("/start.html", "<html><body><a id='next' href='/next.html'>Next</a></body></html>")
+                .page("/next.html", "<html><body><p id='greeting'>Welcome</p></body></html>").start();
+        hub = new TestHub().start();
+        recording = Files.createTempFile("session", ".jsonl.gz").toFile();
+        System.setProperty("test.base.url", pages.getUrl());
+        System.setProperty("test.timeout", "1");
+        System.setProperty("test.disable.accept.cookies", "true");
+        System.setProperty("test.browser", "chrome");
+        System.setProperty("test.remote", "true");
+        System.setProperty("test.selenium.hub", hub.getUrl());
+        System.setProperty("test.webdriver.record", recording.getPath());
+        try {
+            runScenario("next");
+        } finally {
+            System.clearProperty("test.remote");
+            System.clearProperty("test.selenium.hub");
+            System.clearProperty("test.webdriver.record");
+        }
+        // replayed without the pages and the hub
+        pages.stop();
+        hub.stop();
+        System.setProperty("test.browser", "replay");
+        System.setProperty("test.webdriver.replay", recording.getPath());
+    }
+
+    @AfterClass
+    public static void clearProperties() {
+        for (String property : new String[] { "test.base.url", "test.timeout", "test.disable.accept.cookies", "test.browser", "test.webdriver.replay" }) {
+            System.clearProperty(property);
+        }
+        recording.delete();
+    }
+
+    private static void runScenario(String link) throws Throwable {
+        HtmlSteps steps = new HtmlSteps();
+        TestScenario scenario = new TestScenario("@web");
+        steps.beforeScenario(scenario);
+        try {
+            steps.I_visit_page("/start.html");
+            steps.I_click_on_link(link);
+            steps.current_url_should_contain("/next.html");
+            steps.page_element_should(null, "greeting", "contain text \"Welcome\"");
+        } finally {
+            steps.afterScenario(scenario);
+        }
+    }
+
+    @Test
+    public void replaysTheStepsOfTheRecording() throws Throwable {
+        long replayed = GlueMetrics.get("replay.commands");
+        runScenario("next");
+        assertTrue(GlueMetrics.get("replay.commands") > replayed);
+    }
+
+    @Test
+    public void reportsWhereTheStepsDivergeFromTheRecording() throws Throwable {
+        HtmlSteps steps = new HtmlSteps();
+        TestScenario scenario = new TestScenario("@web");
+        steps.beforeScenario(scenario);
+        steps.I_visit_page("/start.html");
+        try {
+            steps.I_click_on_link("previous");
+            fail("the scenario clicks another link than the recorded one");
+        } catch (ReplayWebDriver.DivergenceException e) {
+            // the message of a driver exception ends with the build info
+            assertTrue(e.getMessage(), e.getMessage().startsWith("Command 6 diverges from recording " + recording
+                    + ": expected findElement {\"using\":\"css selector\",\"value\":\"a#next\"},"
+                    + " but was findElement {\"using\":\"css selector\",\"value\":\"a#previous\"}\n"));
+        }
+        try {
+            steps.afterScenario(scenario);
+            fail("the quit is not the next recorded command either");
+        } catch (ReplayWebDriver.DivergenceException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("but was quit {}\n"));
+        }
+    }
+}
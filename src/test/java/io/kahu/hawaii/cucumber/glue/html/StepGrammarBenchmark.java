@@ -0,0 +1,142 @@
+/**
+ * Copyright 2015 Q24
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.kahu.hawaii.cucumber.glue.html;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import cucumber.api.java.en.Then;
+import cucumber.api.java.en.When;
+
+/**
+ * Compares matching the steps of a large generated feature set against the
+ * step definitions of {@link HtmlSteps} before and after the element steps
+ * were folded into one grammar. Like Cucumber, every step is matched against
+ * every definition, to find ambiguous steps; with the grammar, the time
+ * includes looking up the expectation in {@link ElementExpectations}.
+ * <p>
+ * Usage: <code>StepGrammarBenchmark [steps]</code>, by default 20000 steps.
+ */
+public final class StepGrammarBenchmark {
+
+    private static final String VALUE = "\"([^\"]*)\"";
+    private static final String GRAMMAR = "^page element(?: with (id|class name|css selector|xpath expression))? \"([^\"]*)\" should ("
+            + ElementExpectations.PHRASES + ")$";
+    private static final String CONTAIN_GRAMMAR = "^page should (not )?contain element(?: with (id|class name|css selector|xpath expression))? \"([^\"]*)\"$";
+    private static final List<String> OTHER_STEPS = Arrays.asList("I visit page \"/account\"", "I click on button \"submit\"",
+            "I fill \"jan\" in field \"name\"", "current url should contain \"/account\"", "page title should be \"Account\"",
+            "field \"name\" should contain value \"jan\"", "I click on link with text \"Next\"", "body should contain text \"Welcome\"");
+
+    private StepGrammarBenchmark() {
+    }
+
+    public static void main(String[] args) {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+        List<Pattern> after = compile(definitions());
+        List<String> beforeDefinitions = definitions();
+        beforeDefinitions.remove(GRAMMAR);
+        beforeDefinitions.remove(CONTAIN_GRAMMAR);
+        List<String> legacy = legacyDefinitions();
+        beforeDefinitions.addAll(legacy);
+        List<Pattern> before = compile(beforeDefinitions);
+        List<String> steps = new ArrayList<>();
+        for (int i = 0; steps.size() < count; i++) {
+            // element steps in every phrasing they had, and some others
+            steps.add(i % 2 == 0 ? example(legacy.get(i / 2 % legacy.size())) : OTHER_STEPS.get(i / 2 % OTHER_STEPS.size()));
+        }
+        System.out.println(steps.size() + " steps");
+        for (int round = 0; round < 3; round++) {
+            // the first rounds warm up
+            time("before: " + before.size() + " definitions", before, steps, false, round == 2);
+            time("after: " + after.size() + " definitions", after, steps, true, round == 2);
+        }
+    }
+
+    private static void time(String name, List<Pattern> definitions, List<String> steps, boolean dispatch, boolean print) {
+        int unmatched = 0;
+        int ambiguous = 0;
+        long start = System.nanoTime();
+        for (String step : steps) {
+            int matches = 0;
+            for (Pattern definition : definitions) {
+                Matcher matcher = definition.matcher(step);
+                if (matcher.lookingAt()) {
+                    matches++;
+                    if (dispatch && definition.pattern().equals(GRAMMAR) && !ElementExpectations.isKnown(matcher.group(3))) {
+                        unmatched++;
+                    }
+                }
+            }
+            unmatched += matches == 0 ? 1 : 0;
+            ambiguous += matches > 1 ? 1 : 0;
+        }
+        double micros = (System.nanoTime() - start) / 1e3 / steps.size();
+        if (print) {
+            System.out.println(String.format("%-25s %8.2f us per step, %d undefined, %d ambiguous", name, micros, unmatched, ambiguous));
+        }
+    }
+
+    private static List<String> definitions() {
+        List<String> definitions = new ArrayList<>();
+        for (Method method : HtmlSteps.class.getMethods()) {
+            if (method.isAnnotationPresent(When.class)) {
+                definitions.add(method.getAnnotation(When.class).value());
+            }
+            if (method.isAnnotationPresent(Then.class)) {
+                definitions.add(method.getAnnotation(Then.class).value());
+            }
+        }
+        return definitions;
+    }
+
+    /**
+     * @return the element step definitions before the grammar
+     */
+    private static List<String> legacyDefinitions() {
+        List<String> definitions = new ArrayList<>();
+        for (String type : Arrays.asList("", " with id", " with class name", " with xpath expression")) {
+            definitions.add("^page should contain element" + type + " " + VALUE + "$");
+            definitions.add("^page should not contain element" + type + " " + VALUE + "$");
+        }
+        List<String> expectations = Arrays.asList("be visible", "not be visible", "contain text " + VALUE, "not contain text " + VALUE,
+                "contain element with class name " + VALUE, "not contain element with class name " + VALUE,
+                "contain visible element with class name " + VALUE, "contain invisible element with class name " + VALUE);
+        for (String type : Arrays.asList("", " with id", " with class name")) {
+            for (String expectation : expectations) {
+                definitions.add("^page element" + type + " " + VALUE + " should " + expectation + "$");
+            }
+        }
+        definitions.add("^page element " + VALUE + " should contain class name " + VALUE + "$");
+        definitions.add("^page element with id " + VALUE + " should have class " + VALUE + "$");
+        return definitions;
+    }
+
+    private static String example(String definition) {
+        return definition.substring(1, definition.length() - 1).replace(VALUE, "\"value\"");
+    }
+
+    private static List<Pattern> compile(List<String> definitions) {
+        List<Pattern> patterns = new ArrayList<>();
+        for (String definition : definitions) {
+            patterns.add(Pattern.compile(definition));
+        }
+        return patterns;
+    }
+}
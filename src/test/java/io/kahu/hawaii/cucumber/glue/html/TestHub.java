@@ -0,0 +1,86 @@
+/**
+ * Copyright 2015 Q24
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.kahu.hawaii.cucumber.glue.html;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.logging.Logger;
+
+import org.openqa.selenium.htmlunit.HtmlUnitDriver;
+import org.openqa.selenium.remote.DesiredCapabilities;
+import org.openqa.selenium.remote.http.HttpMethod;
+import org.openqa.selenium.remote.http.HttpRequest;
+import org.openqa.selenium.remote.http.HttpResponse;
+import org.openqa.selenium.remote.server.DefaultDriverSessions;
+import org.openqa.selenium.remote.server.JsonHttpCommandHandler;
+
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Selenium hub on a free local port that runs every session on an HtmlUnit
+ * driver, for tests that need a remote driver, whose commands can be
+ * recorded, without a real browser.
+ */
+class TestHub {
+
+    private static final String CONTEXT = "/wd/hub";
+
+    private HttpServer server;
+
+    TestHub start() throws IOException {
+        DefaultDriverSessions sessions = new DefaultDriverSessions();
+        sessions.registerDriver(DesiredCapabilities.chrome(), HtmlUnitDriver.class);
+        JsonHttpCommandHandler handler = new JsonHttpCommandHandler(sessions, Logger.getLogger(TestHub.class.getName()));
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext(CONTEXT, exchange -> {
+            HttpRequest request = new HttpRequest(HttpMethod.valueOf(exchange.getRequestMethod()),
+                    exchange.getRequestURI().getPath().substring(CONTEXT.length()));
+            request.setContent(readFully(exchange.getRequestBody()));
+            HttpResponse response = handler.handleRequest(request);
+            byte[] body = response.getContent();
+            for (Object name : response.getHeaderNames()) {
+                exchange.getResponseHeaders().set((String) name, response.getHeader((String) name));
+            }
+            exchange.sendResponseHeaders(response.getStatus(), body.length == 0 ? -1 : body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        server.start();
+        return this;
+    }
+
+    private static byte[] readFully(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+        return out.toByteArray();
+    }
+
+    String getUrl() {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + CONTEXT;
+    }
+
+    void stop() {
+        server.stop(0);
+    }
+}
@@ -0,0 +1,80 @@
+/**
+ * Copyright 2015 Q24
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.kahu.hawaii.cucumber.glue.html;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+import cucumber.api.Scenario;
+
+/**
+ * A scenario for calling the hooks of the glue from a test, that keeps what
+ * the glue writes to the report.
+ */
+class TestScenario implements Scenario {
+
+    private final Collection<String> tags;
+    private final List<String> written = new ArrayList<>();
+    private boolean failed;
+
+    TestScenario(String... tags) {
+        this.tags = Arrays.asList(tags);
+    }
+
+    List<String> getWritten() {
+        return written;
+    }
+
+    void setFailed(boolean failed) {
+        this.failed = failed;
+    }
+
+    @Override
+    public Collection<String> getSourceTagNames() {
+        return tags;
+    }
+
+    @Override
+    public String getStatus() {
+        return failed ? "failed" : "passed";
+    }
+
+    @Override
+    public boolean isFailed() {
+        return failed;
+    }
+
+    @Override
+    public void embed(byte[] data, String mimeType) {
+    }
+
+    @Override
+    public void write(String text) {
+        written.add(text);
+    }
+
+    @Override
+    public String getName() {
+        return "test scenario";
+    }
+
+    @Override
+    public String getId() {
+        return "test-scenario";
+    }
+}
@@ -0,0 +1,145 @@
+/**
+ * Copyright 2015 Q24
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.kahu.hawaii.cucumber.glue.html;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openqa.selenium.remote.CommandExecutor;
+import org.openqa.selenium.remote.CommandInfo;
+import org.openqa.selenium.remote.DesiredCapabilities;
+import org.openqa.selenium.remote.HttpCommandExecutor;
+import org.openqa.selenium.remote.RemoteWebDriver;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Compares the default transport of remote drivers with the
+ * {@link PooledHttpClientFactory}, against a local stand-in for the selenium
+ * hub that answers every command at once, but makes every new connection
+ * wait, as the handshake with a load balancer would.
+ * <p>
+ * Usage: <code>TransportBenchmark [commands] [connection setup ms]</code>, by
+ * default 500 commands and 5 ms.
+ */
+public final class TransportBenchmark {
+
+    private TransportBenchmark() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        int commands = args.length > 0 ? Integer.parseInt(args[0]) : 500;
+        long setup = args.length > 1 ? Long.parseLong(args[1]) : 5;
+        StandInHub hub = new StandInHub(setup);
+        try {
+            URL url = hub.getUrl();
+            System.out.println(commands + " commands, " + setup + " ms connection setup");
+            time("default transport", commands, hub, new HttpCommandExecutor(url));
+            PooledHttpClientFactory pooled = new PooledHttpClientFactory(20, 10000, 10000, 30000, false);
+            time("pooled transport", commands, hub,
+                    new HttpCommandExecutor(Collections.<String, CommandInfo> emptyMap(), url, pooled));
+            System.out.println("pool: " + pooled.getStats());
+        } finally {
+            hub.stop();
+        }
+    }
+
+    private static void time(String name, int commands, StandInHub hub, CommandExecutor executor) {
+        int connections = hub.getConnections();
+        RemoteWebDriver driver = new RemoteWebDriver(executor, DesiredCapabilities.htmlUnit());
+        try {
+            driver.getCurrentUrl();
+            long start = System.nanoTime();
+            for (int i = 0; i < commands; i++) {
+                driver.getCurrentUrl();
+            }
+            double millis = (System.nanoTime() - start) / 1e6 / commands;
+            System.out.println(String.format("%-20s %8.3f ms per command, %d connection(s)", name, millis, hub.getConnections() - connections));
+        } finally {
+            driver.quit();
+        }
+    }
+
+    /**
+     * Answers the commands of one session with fixed values.
+     */
+    private static class StandInHub {
+
+        private final long setup;
+        private final HttpServer server;
+        private final Set<InetSocketAddress> clients = Collections.synchronizedSet(new HashSet<>());
+        private final AtomicInteger connections = new AtomicInteger();
+
+        StandInHub(long setup) throws IOException {
+            this.setup = setup;
+            // or every response waits for the delayed ack of its headers
+            System.setProperty("sun.net.httpserver.nodelay", "true");
+            server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+            server.createContext("/", this::handle);
+            server.setExecutor(Executors.newCachedThreadPool(runnable -> {
+                Thread thread = new Thread(runnable, "stand-in-hub");
+                thread.setDaemon(true);
+                return thread;
+            }));
+            server.start();
+        }
+
+        URL getUrl() throws IOException {
+            return new URL("http://localhost:" + server.getAddress().getPort() + "/wd/hub");
+        }
+
+        int getConnections() {
+            return connections.get();
+        }
+
+        void stop() {
+            server.stop(0);
+        }
+
+        private void handle(HttpExchange exchange) throws IOException {
+            try (InputStream in = exchange.getRequestBody()) {
+                while (in.read() >= 0) {
+                    // drain the request, so the connection can be reused
+                }
+            }
+            if (clients.add(exchange.getRemoteAddress())) {
+                connections.incrementAndGet();
+                try {
+                    Thread.sleep(setup);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            String value = exchange.getRequestURI().getPath().endsWith("/url") ? "\"about:blank\"" : "{\"browserName\":\"htmlunit\"}";
+            byte[] body = ("{\"sessionId\":\"stand-in\",\"status\":0,\"value\":" + value + "}").getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().add("Content-Type", "application/json; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        }
+    }
+}